@@ -0,0 +1,138 @@
+package cores;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The two DirectSound channels (A and B). Each one has a 32 byte FIFO of signed 8 bit samples
+ * that the game fills through FIFO_A/FIFO_B, and takes the next sample every time the timer
+ * selected in SOUNDCNT_H overflows (see {@link #timerOverflow(int, int)}).
+ * <p>
+ * DMA isn't emulated, a channel only reports that it wants to be refilled once half of its FIFO
+ * has been played.
+ *
+ * @author David Goldman
+ */
+public class DirectSound implements Memory.IOByteHandler {
+
+	/*
+	 * IO registers (addresses MINUS 0x4000000)
+	 */
+	public static final int SOUNDCNT_H = 0x82;
+	public static final int FIFO_A = 0xA0; //32 bit, write only
+	public static final int FIFO_B = 0xA4;
+
+	public static final int A = 0;
+	public static final int B = 1;
+
+	private static final int FIFO_SIZE = 32; //Bytes
+	private static final int REFILL = 16; //DMA is requested at this many bytes left
+
+	private int control; //SOUNDCNT_H without the reset bits
+
+	/*
+	 * Channel state, indexed by channel. Each FIFO is a ring buffer of count bytes from reads[channel].
+	 */
+	private final byte[][] fifos = new byte[2][FIFO_SIZE];
+	private final int[] reads = new int[2];
+	private final int[] counts = new int[2];
+	private final byte[] samples = new byte[2];
+
+	/**
+	 * Called by the Timers for every overflow of timer 0 or 1. Each channel using timer plays the
+	 * next overflows samples from its FIFO, an empty FIFO keeps playing the last sample.
+	 */
+	public void timerOverflow(int timer, int overflows) {
+		for (int channel = A; channel <= B; ++channel) {
+			if (timer(channel) != timer || counts[channel] == 0)
+				continue;
+			int played = Math.min(overflows, counts[channel]);
+			int read = (reads[channel] + played - 1) & (FIFO_SIZE - 1);
+			samples[channel] = fifos[channel][read];
+			reads[channel] = (read + 1) & (FIFO_SIZE - 1);
+			counts[channel] -= played;
+		}
+	}
+
+	/**
+	 * @return The timer (0 or 1) that clocks channel
+	 */
+	private int timer(int channel) {
+		return (control >>> ((channel == A) ? 10 : 14)) & 0x1;
+	}
+
+	/**
+	 * @return The signed 8 bit sample channel is playing
+	 */
+	public int sample(int channel) {
+		return samples[channel];
+	}
+
+	/**
+	 * @return Whether the FIFO of channel is at most half full, which is when the hardware requests a sound DMA
+	 */
+	public boolean needsRefill(int channel) {
+		return counts[channel] <= REFILL;
+	}
+
+	/**
+	 * Adds a sample to a FIFO. A full FIFO drops its oldest sample to make room.
+	 */
+	private void push(int channel, int value) {
+		if (counts[channel] == FIFO_SIZE) {
+			reads[channel] = (reads[channel] + 1) & (FIFO_SIZE - 1);
+			--counts[channel];
+		}
+		fifos[channel][(reads[channel] + counts[channel]++) & (FIFO_SIZE - 1)] = (byte) value;
+	}
+
+	private void setControl(int value) {
+		if ((value & 0x800) != 0) //Reset FIFO A
+			counts[A] = 0;
+		if ((value & 0x8000) != 0) //Reset FIFO B
+			counts[B] = 0;
+		control = value & 0x770F;
+	}
+
+	public void save(ByteBuffer state) {
+		state.putShort((short) control);
+		for (int channel = A; channel <= B; ++channel)
+			state.put(fifos[channel]).put((byte) reads[channel]).put((byte) counts[channel]).put(samples[channel]);
+	}
+
+	public void load(ByteBuffer state) {
+		control = state.getShort() & 0x770F;
+		for (int channel = A; channel <= B; ++channel) {
+			state.get(fifos[channel]);
+			reads[channel] = state.get() & (FIFO_SIZE - 1);
+			counts[channel] = Math.min(state.get() & 0xFF, FIFO_SIZE);
+			samples[channel] = state.get();
+		}
+	}
+
+	@Override
+	public int read16(int register) {
+		return (register == SOUNDCNT_H) ? control : 0; //The FIFOs are write only
+	}
+
+	@Override
+	public void write16(int register, int value) {
+		if (register == SOUNDCNT_H)
+			setControl(value);
+		else if (register >= FIFO_A && register < FIFO_B + 4) {
+			int channel = (register < FIFO_B) ? A : B;
+			push(channel, value);
+			push(channel, value >>> 8);
+		}
+	}
+
+	@Override
+	public void write8(int register, int value) {
+		if ((register & ~0x1) == SOUNDCNT_H) {
+			int shift = (register & 0x1) << 3;
+			setControl((control & ~(0xFF << shift)) | (value << shift));
+		}
+		else if (register >= FIFO_A && register < FIFO_B + 4)
+			push((register < FIFO_B) ? A : B, value);
+	}
+
+}
@@ -0,0 +1,138 @@
+package cores;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The interrupt control registers IE, IF and IME. Components request an interrupt by setting
+ * its bit in IF with {@link #request(int)}, the game acknowledges it by writing a 1 to that bit.
+ * The CPU doesn't take IRQ exceptions yet, so requests are only recorded.
+ * <p>
+ * Also handles POSTFLG (kept by the Waitstate) and HALTCNT. Writing HALTCNT halts the CPU until
+ * an enabled interrupt is requested, see {@link #isHalted()}. Stop mode is treated as a halt
+ * that only ends for the keypad, game pak and serial interrupts, the timers keep running.
+ *
+ * @author David Goldman
+ */
+public class Interrupts implements Memory.IOByteHandler {
+
+	/*
+	 * IO registers (addresses MINUS 0x4000000)
+	 */
+	public static final int IE = 0x200;
+	public static final int IF = 0x202;
+	public static final int IME = 0x208;
+	public static final int POSTFLG = 0x300; //POSTFLG (8 bit) and HALTCNT (8 bit)
+	public static final int HALTCNT = 0x301;
+
+	/*
+	 * Interrupt bits in IE and IF
+	 */
+	public static final int VBLANK = 0x1;
+	public static final int HBLANK = 0x2;
+	public static final int VCOUNT = 0x4;
+	public static final int TIMER0 = 0x8; //Timer n is TIMER0 << n
+	public static final int SERIAL = 0x80;
+	public static final int DMA0 = 0x100; //DMA n is DMA0 << n
+	public static final int KEYPAD = 0x1000;
+	public static final int GAMEPAK = 0x2000;
+
+	private static final int ALL = 0x3FFF;
+	private static final int STOP_WAKE = KEYPAD | GAMEPAK | SERIAL;
+
+	private final Waitstate wait;
+
+	private int enabled, requested;
+	private boolean master;
+
+	/**
+	 * The interrupts that end the current halt, 0 if the CPU isn't halted.
+	 */
+	private int halt;
+
+	public Interrupts(Waitstate wait) {
+		this.wait = wait;
+	}
+
+	/**
+	 * Sets the bits of interrupts in IF. They stay set until the game acknowledges them.
+	 */
+	public void request(int interrupts) {
+		requested |= interrupts;
+	}
+
+	/**
+	 * @return Whether an enabled interrupt is requested (IE & IF), whatever IME is
+	 */
+	public boolean pending() {
+		return (enabled & requested) != 0;
+	}
+
+	/**
+	 * @return Whether the CPU is halted. The halt ends once one of the interrupts that can end
+	 * it is both enabled and requested (also if it already was when halting).
+	 */
+	public boolean isHalted() {
+		if (halt != 0 && (enabled & requested & halt) != 0)
+			halt = 0;
+		return halt != 0;
+	}
+
+	/**
+	 * A write to HALTCNT, bit 7 selects stop mode instead of halt.
+	 */
+	private void setHaltCNT(int value) {
+		halt = ((value & 0x80) != 0) ? STOP_WAKE : ALL;
+	}
+
+	public void save(ByteBuffer state) {
+		state.putShort((short) enabled).putShort((short) requested).put((byte) (master ? 1 : 0)).putShort((short) halt);
+	}
+
+	public void load(ByteBuffer state) {
+		enabled = state.getShort() & ALL;
+		requested = state.getShort() & ALL;
+		master = state.get() != 0;
+		halt = state.getShort() & ALL;
+	}
+
+	@Override
+	public int read16(int register) {
+		switch(register) {
+		case IE: return enabled;
+		case IF: return requested;
+		case IME: return (master) ? 1 : 0;
+		case POSTFLG: return wait.getPostBoot() & 0xFF; //HALTCNT is write only
+		default: return 0;
+		}
+	}
+
+	@Override
+	public void write16(int register, int value) {
+		switch(register) {
+		case IE: enabled = value & ALL; break;
+		case IF: requested &= ~value; break; //Writing 1 acknowledges
+		case IME: master = (value & 0x1) != 0; break;
+		case POSTFLG:
+			wait.setPostBoot(value & 0xFF);
+			setHaltCNT(value >>> 8);
+			break;
+		}
+	}
+
+	@Override
+	public void write8(int register, int value) {
+		int shift = (register & 0x1) << 3;
+		switch(register & ~0x1) {
+		case IE: enabled = ((enabled & ~(0xFF << shift)) | (value << shift)) & ALL; break;
+		case IF: requested &= ~(value << shift); break;
+		case IME: if (shift == 0) master = (value & 0x1) != 0; break;
+		case POSTFLG:
+			if (shift == 0)
+				wait.setPostBoot(value);
+			else
+				setHaltCNT(value);
+			break;
+		}
+	}
+
+}
@@ -0,0 +1,541 @@
+package cores;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The GBA memory map. Every region is backed by a byte array and accessed through a page table
+ * indexed by bit 31-24 of the address, so plain memory is a direct array access. Pages without
+ * a backing array (IO, writes to read only memory, SRAM and the byte writes to video memory)
+ * are handled by the slow path.
+ * <p>
+ * The cartridge ROM is the exception, it is a (usually memory mapped) ByteBuffer so that it
+ * isn't copied onto the heap. ROM pages have no array but are still a contiguous run of memory
+ * for the bulk accesses.
+ *
+ * @author David Goldman
+ * @see <a href="http://nocash.emubase.de/gbatek.htm#gbamemorymap">GBATEK</a>
+ */
+public class Memory {
+
+	/**
+	 * Handles reads and writes to one or more IO registers. All accesses are done as halfwords,
+	 * a byte write is merged with the last halfword written unless the handler is an {@link IOByteHandler}.
+	 */
+	public static interface IOHandler {
+		/**
+		 * @param register Register address MINUS 0x4000000 (halfword aligned)
+		 * @return The 16 bit value of the register
+		 */
+		public int read16(int register);
+
+		/**
+		 * @param register Register address MINUS 0x4000000 (halfword aligned)
+		 * @param value The 16 bit value written
+		 */
+		public void write16(int register, int value);
+	}
+
+	/**
+	 * An IOHandler for registers where writing a byte isn't the same as writing the halfword
+	 * with the other byte unchanged (e.g. IF, where a 1 bit acknowledges a request).
+	 */
+	public static interface IOByteHandler extends IOHandler {
+		/**
+		 * @param register Register address MINUS 0x4000000 (may be odd)
+		 * @param value The 8 bit value written
+		 */
+		public void write8(int register, int value);
+	}
+
+	/*
+	 * Pages (bit 31-24 of the address), everything above 0xF is unused
+	 */
+	public static final int BIOS = 0x0;
+	public static final int EWRAM = 0x2;
+	public static final int IWRAM = 0x3;
+	public static final int IO = 0x4;
+	public static final int PALETTE = 0x5;
+	public static final int VRAM = 0x6;
+	public static final int OAM = 0x7;
+	public static final int ROM = 0x8; //0x8-0xD, three mirrors with different waitstates
+	public static final int SRAM = 0xE; //0xE-0xF
+
+	public static final int BIOS_SIZE = 0x4000; //16 KB
+	public static final int EWRAM_SIZE = 0x40000; //256 KB
+	public static final int IWRAM_SIZE = 0x8000; //32 KB
+	public static final int IO_SIZE = 0x400; //1 KB
+	public static final int PALETTE_SIZE = 0x400; //1 KB
+	public static final int VRAM_SIZE = 0x18000; //96 KB
+	public static final int OAM_SIZE = 0x400; //1 KB
+	public static final int SRAM_SIZE = 0x10000; //64 KB
+
+	/**
+	 * Undocumented internal memory control register, mirrored every 64K in the IO page.
+	 */
+	public static final int MEMORY_CONTROL = 0x800;
+
+	protected final byte[] bios = new byte[BIOS_SIZE];
+	protected final byte[] ewram = new byte[EWRAM_SIZE];
+	protected final byte[] iwram = new byte[IWRAM_SIZE];
+	protected final byte[] io = new byte[IO_SIZE];
+	protected final byte[] palette = new byte[PALETTE_SIZE];
+	protected final byte[] vram = new byte[VRAM_SIZE];
+	protected final byte[] oam = new byte[OAM_SIZE];
+	protected final byte[] sram = new byte[SRAM_SIZE];
+	protected ByteBuffer rom = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+	private int romLength; //Reads past the end of the ROM return 0
+
+	private static final int PAGES = 0x100;
+
+	/*
+	 * Page tables, indexed by bit 31-24 of the address. A null entry means that the page is
+	 * handled by the slow path. The index into the array is offsets[page] + (address & masks[page]).
+	 */
+	private final byte[][] readPages = new byte[PAGES][];
+	private final byte[][] writePages = new byte[PAGES][];
+	private final byte[][] writePages8 = new byte[PAGES][];
+	private final int[] masks = new int[PAGES];
+	private final int[] offsets = new int[PAGES];
+
+	/**
+	 * Memory is tracked in pages of DIRTY_PAGE_SIZE bytes for incremental snapshots.
+	 */
+	public static final int DIRTY_PAGE_SHIFT = 10;
+	public static final int DIRTY_PAGE_SIZE = 1 << DIRTY_PAGE_SHIFT;
+
+	/*
+	 * Dirty page bitmaps, one bit per page of each region in the order of regions(). Every store
+	 * to a backing array sets the bit of its page in the bitmap of its page table entry.
+	 */
+	private final int[][] dirtyMaps = new int[7][];
+	private final int[][] dirty = new int[PAGES][];
+
+	/**
+	 * Map from (IO register >>> 1) to its handler, or null if the register is just storage.
+	 */
+	private final IOHandler[] ioHandlers = new IOHandler[IO_SIZE >>> 1];
+	private IOHandler memoryControl;
+
+	public Memory() {
+		map(BIOS, bios, BIOS_SIZE - 1, false);
+		map(EWRAM, ewram, EWRAM_SIZE - 1, true);
+		map(IWRAM, iwram, IWRAM_SIZE - 1, true);
+		map(PALETTE, palette, PALETTE_SIZE - 1, true);
+		map(VRAM, vram, 0x1FFFF, true); //96 KB mirrored in 128 KB, see index()
+		map(OAM, oam, OAM_SIZE - 1, true);
+		mapROM(1);
+		//IO and SRAM are always handled by the slow path
+		writePages8[PALETTE] = writePages8[VRAM] = writePages8[OAM] = null;
+
+		byte[][] regions = { ewram, iwram, io, palette, vram, oam, sram };
+		int[] pages = { EWRAM, IWRAM, IO, PALETTE, VRAM, OAM, SRAM };
+		for (int region = 0; region < regions.length; ++region) {
+			dirtyMaps[region] = new int[(((regions[region].length + DIRTY_PAGE_SIZE - 1) >>> DIRTY_PAGE_SHIFT) + 31) >>> 5];
+			dirty[pages[region]] = dirtyMaps[region];
+		}
+		dirty[SRAM + 1] = dirty[SRAM];
+		setAllDirty();
+	}
+
+	private void map(int page, byte[] data, int mask, boolean writable) {
+		readPages[page] = data;
+		writePages[page] = writePages8[page] = (writable) ? data : null;
+		masks[page] = mask;
+		offsets[page] = 0;
+	}
+
+	private void mapROM(int length) {
+		//Round up to a power of two so that the ROM is mirrored inside its page
+		int size = Integer.highestOneBit(Math.max(length, 1));
+		if (size < length)
+			size <<= 1;
+
+		for (int page = ROM; page < SRAM; ++page) {
+			map(page, null, Math.min(size, 0x1000000) - 1, false);
+			//The upper 16 MB of a 32 MB ROM are in the odd pages
+			if ((page & 0x1) == 0x1 && size > 0x1000000)
+				offsets[page] = 0x1000000;
+		}
+	}
+
+	/**
+	 * Load the cartridge ROM (at most 32 MB). The buffer is used as is, not copied.
+	 */
+	public void loadROM(ByteBuffer data) {
+		rom = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		romLength = rom.limit();
+		mapROM(romLength);
+	}
+
+	private static boolean isROM(int page) {
+		return page >= ROM && page < SRAM;
+	}
+
+	private int romRead32(int index) {
+		if (index <= romLength - 4)
+			return rom.getInt(index);
+		return romRead8(index) | (romRead8(index + 1) << 8) | (romRead8(index + 2) << 16) | (romRead8(index + 3) << 24);
+	}
+
+	private int romRead16(int index) {
+		if (index <= romLength - 2)
+			return rom.getShort(index) & 0xFFFF;
+		return romRead8(index) | (romRead8(index + 1) << 8);
+	}
+
+	private int romRead8(int index) {
+		return (index < romLength) ? rom.get(index) & 0xFF : 0;
+	}
+
+	/**
+	 * Bulk read of the ROM from index, past the end of the ROM is 0.
+	 */
+	private void romRead(int index, byte[] data, int offset, int length) {
+		int available = Math.max(0, Math.min(length, romLength - index));
+		if (available > 0) {
+			ByteBuffer src = rom.duplicate();
+			src.position(index);
+			src.get(data, offset, available);
+		}
+		for (int i = available; i < length; ++i)
+			data[offset + i] = 0;
+	}
+
+	/**
+	 * @return Buffers over the arrays of the regions a save state has to keep (EWRAM, IWRAM, IO,
+	 * palette, VRAM, OAM and SRAM), reading into them writes straight into memory
+	 */
+	public ByteBuffer[] regions() {
+		return new ByteBuffer[] {
+				ByteBuffer.wrap(ewram), ByteBuffer.wrap(iwram), ByteBuffer.wrap(io), ByteBuffer.wrap(palette),
+				ByteBuffer.wrap(vram), ByteBuffer.wrap(oam), ByteBuffer.wrap(sram) };
+	}
+
+	/**
+	 * @return The live dirty page bitmap of region (in the order of {@link #regions()}), bit n of
+	 * word n >>> 5 is set if page n was written since the bit was last cleared
+	 */
+	public int[] getDirtyPages(int region) {
+		return dirtyMaps[region];
+	}
+
+	/**
+	 * Marks every page as dirty, e.g. after memory was replaced without going through the stores.
+	 */
+	public void setAllDirty() {
+		for (int[] map : dirtyMaps)
+			Arrays.fill(map, -1);
+	}
+
+	private void setDirty(int page, int index) {
+		dirty[page][index >>> (DIRTY_PAGE_SHIFT + 5)] |= 1 << (index >>> DIRTY_PAGE_SHIFT);
+	}
+
+	private void setDirty(int page, int index, int length) {
+		if (length > 0)
+			for (int p = index >>> DIRTY_PAGE_SHIFT; p <= (index + length - 1) >>> DIRTY_PAGE_SHIFT; ++p)
+				dirty[page][p >>> 5] |= 1 << p;
+	}
+
+	public void loadBIOS(byte[] data) {
+		System.arraycopy(data, 0, bios, 0, Math.min(data.length, BIOS_SIZE));
+	}
+
+	/**
+	 * Registers a handler for the IO registers in [first, last] (addresses MINUS 0x4000000).
+	 */
+	public void registerIO(int first, int last, IOHandler handler) {
+		if (first == MEMORY_CONTROL)
+			memoryControl = handler;
+		else
+			for (int register = first >>> 1; register <= (last >>> 1); ++register)
+				ioHandlers[register] = handler;
+	}
+
+	private int index(int page, int address) {
+		int index = offsets[page] + (address & masks[page]);
+		if (page == VRAM && index >= VRAM_SIZE) //0x6018000-0x601FFFF mirrors the OBJ tiles
+			index -= 0x8000;
+		return index;
+	}
+
+	/**
+	 * @return The array backing address, or null if it is handled by the slow path (or is ROM)
+	 * @see #getIndex(int)
+	 */
+	public byte[] getReadArray(int address) {
+		return readPages[address >>> 24];
+	}
+
+	/**
+	 * @return The index of address in the array from {@link #getReadArray(int)}
+	 */
+	public int getIndex(int address) {
+		return index(address >>> 24, address);
+	}
+
+	/**
+	 * @return The number of bytes from address to the end of its run in the backing array
+	 * (the next mirror or the VRAM fold), 0 if the page has no backing array or ROM
+	 */
+	public int contiguous(int address) {
+		int page = address >>> 24;
+		if (readPages[page] == null && !isROM(page))
+			return 0;
+		int offset = address & masks[page];
+		if (page == VRAM && offset < VRAM_SIZE)
+			return VRAM_SIZE - offset;
+		return masks[page] + 1 - offset;
+	}
+
+	/**
+	 * Copies length bytes from address into data. A single array (or ROM buffer) copy if the range
+	 * doesn't cross a mirror, byte reads otherwise.
+	 */
+	public void read(int address, byte[] data, int offset, int length) {
+		byte[] src = readPages[address >>> 24];
+		if (contiguous(address) < length)
+			for (int i = 0; i < length; ++i)
+				data[offset + i] = (byte) read8(address + i);
+		else if (src != null)
+			System.arraycopy(src, getIndex(address), data, offset, length);
+		else //ROM
+			romRead(getIndex(address), data, offset, length);
+	}
+
+	/**
+	 * Copies length bytes from data to address. A single array copy if the range doesn't cross
+	 * a mirror and the page allows it, halfword (or byte) writes otherwise.
+	 *
+	 * @param halfwords Whether the data is written as halfwords (VRAM safe) rather than bytes
+	 */
+	public void write(int address, byte[] data, int offset, int length, boolean halfwords) {
+		byte[] dst = (halfwords) ? writePages[address >>> 24] : writePages8[address >>> 24];
+		if (dst != null && contiguous(address) >= length) {
+			System.arraycopy(data, offset, dst, getIndex(address), length);
+			setDirty(address >>> 24, getIndex(address), length);
+		}
+		else if (halfwords)
+			for (int i = 0; i < length; i += 2)
+				write16(address + i, (data[offset + i] & 0xFF) | ((i + 1 < length) ? (data[offset + i + 1] & 0xFF) << 8 : 0));
+		else
+			for (int i = 0; i < length; ++i)
+				write8(address + i, data[offset + i]);
+	}
+
+	/**
+	 * Copies length bytes from src to dst with a single array copy, if both ranges are inside one
+	 * run of a backing array (and dst is writable as halfwords/words).
+	 *
+	 * @return Whether the copy was done, if not the caller has to use the bus
+	 */
+	public boolean copy(int src, int dst, int length) {
+		byte[] from = readPages[src >>> 24];
+		byte[] to = writePages[dst >>> 24];
+		if (to == null || contiguous(src) < length || contiguous(dst) < length)
+			return false;
+		int i = getIndex(src);
+		int j = getIndex(dst);
+		if (from == null) { //ROM
+			romRead(i, to, j, length);
+			setDirty(dst >>> 24, j, length);
+			return true;
+		}
+		if (from == to && j > i && j < i + length) //Copying forwards over the source repeats it, unlike arraycopy
+			return false;
+		System.arraycopy(from, i, to, j, length);
+		setDirty(dst >>> 24, j, length);
+		return true;
+	}
+
+	/**
+	 * Fills length bytes at dst with the low unit bytes of value, like {@link #copy(int, int, int)}.
+	 *
+	 * @return Whether the fill was done, if not the caller has to use the bus
+	 */
+	public boolean fill(int dst, int length, int value, int unit) {
+		byte[] to = writePages[dst >>> 24];
+		if (to == null || contiguous(dst) < length)
+			return false;
+		int j = getIndex(dst);
+		for (int i = 0; i < unit && i < length; ++i)
+			to[j + i] = (byte) (value >>> (i << 3));
+		for (int filled = unit; filled < length; filled <<= 1)
+			System.arraycopy(to, j, to, j + filled, Math.min(filled, length - filled));
+		setDirty(dst >>> 24, j, length);
+		return true;
+	}
+
+	public int read32(int address) {
+		int page = address >>> 24;
+		byte[] data = readPages[page];
+		if (data != null) {
+			int i = index(page, address & 0xFFFFFFFC);
+			return (data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8) | ((data[i + 2] & 0xFF) << 16) | (data[i + 3] << 24);
+		}
+		switch(page) {
+		case ROM: case ROM + 1: case ROM + 2: case ROM + 3: case ROM + 4: case ROM + 5:
+			return romRead32(index(page, address & 0xFFFFFFFC));
+		case IO: return ioRead16(address & 0xFFFFFFFC) | (ioRead16((address & 0xFFFFFFFC) + 2) << 16);
+		case SRAM: case SRAM + 1: return (sram[address & 0xFFFF] & 0xFF) * 0x01010101; //8 bit bus
+		default: return 0; //Unused memory
+		}
+	}
+
+	public int read16(int address) {
+		int page = address >>> 24;
+		byte[] data = readPages[page];
+		if (data != null) {
+			int i = index(page, address & 0xFFFFFFFE);
+			return (data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8);
+		}
+		switch(page) {
+		case ROM: case ROM + 1: case ROM + 2: case ROM + 3: case ROM + 4: case ROM + 5:
+			return romRead16(index(page, address & 0xFFFFFFFE));
+		case IO: return ioRead16(address);
+		case SRAM: case SRAM + 1: return (sram[address & 0xFFFF] & 0xFF) * 0x0101;
+		default: return 0; //Unused memory
+		}
+	}
+
+	public int read8(int address) {
+		int page = address >>> 24;
+		byte[] data = readPages[page];
+		if (data != null)
+			return data[index(page, address)] & 0xFF;
+		switch(page) {
+		case ROM: case ROM + 1: case ROM + 2: case ROM + 3: case ROM + 4: case ROM + 5:
+			return romRead8(index(page, address));
+		case IO: return (ioRead16(address) >>> ((address & 0x1) << 3)) & 0xFF;
+		case SRAM: case SRAM + 1: return sram[address & 0xFFFF] & 0xFF;
+		default: return 0; //Unused memory
+		}
+	}
+
+	public void write32(int address, int val) {
+		int page = address >>> 24;
+		byte[] data = writePages[page];
+		if (data != null) {
+			int i = index(page, address & 0xFFFFFFFC);
+			data[i] = (byte) val;
+			data[i + 1] = (byte) (val >>> 8);
+			data[i + 2] = (byte) (val >>> 16);
+			data[i + 3] = (byte) (val >>> 24);
+			setDirty(page, i);
+		}
+		else {
+			switch(page) {
+			case IO:
+				ioWrite16(address & 0xFFFFFFFC, val & 0xFFFF);
+				ioWrite16((address & 0xFFFFFFFC) + 2, val >>> 16);
+				break;
+			case SRAM: case SRAM + 1: writeSRAM(address, val >>> ((address & 0x3) << 3)); break; //8 bit bus
+			default: break; //Read only
+			}
+		}
+	}
+
+	public void write16(int address, int val) {
+		int page = address >>> 24;
+		byte[] data = writePages[page];
+		if (data != null) {
+			int i = index(page, address & 0xFFFFFFFE);
+			data[i] = (byte) val;
+			data[i + 1] = (byte) (val >>> 8);
+			setDirty(page, i);
+		}
+		else {
+			switch(page) {
+			case IO: ioWrite16(address, val & 0xFFFF); break;
+			case SRAM: case SRAM + 1: writeSRAM(address, val >>> ((address & 0x1) << 3)); break; //8 bit bus
+			default: break; //Read only
+			}
+		}
+	}
+
+	public void write8(int address, int val) {
+		int page = address >>> 24;
+		byte[] data = writePages8[page];
+		if (data != null) {
+			int i = index(page, address);
+			data[i] = (byte) val;
+			setDirty(page, i);
+		}
+		else {
+			switch(page) {
+			case IO: ioWrite8(address, val & 0xFF); break;
+			case PALETTE: write16(address, (val & 0xFF) * 0x0101); break; //Byte is written to both halves
+			case VRAM:
+				if (index(page, address) < 0x10000) //BG data behaves like palette, OBJ data ignores byte writes
+					write16(address, (val & 0xFF) * 0x0101);
+				break;
+			case OAM: break; //Byte writes are ignored
+			case SRAM: case SRAM + 1: writeSRAM(address, val); break;
+			default: break; //Read only
+			}
+		}
+	}
+
+	private void writeSRAM(int address, int val) {
+		sram[address & 0xFFFF] = (byte) val;
+		setDirty(SRAM, address & 0xFFFF);
+	}
+
+	/*
+	 * Only the memory control register is mirrored (every 64K), the rest of the IO page past the
+	 * registers is unused
+	 */
+	private int ioRead16(int address) {
+		int register = address & 0xFFFE;
+		if (register < IO_SIZE && (address & 0xFF0000) == 0) {
+			IOHandler handler = ioHandlers[register >>> 1];
+			if (handler != null)
+				return handler.read16(register) & 0xFFFF;
+			return (io[register] & 0xFF) | ((io[register + 1] & 0xFF) << 8);
+		}
+		if ((register & 0xFFFC) == MEMORY_CONTROL && memoryControl != null)
+			return memoryControl.read16(register) & 0xFFFF;
+		return 0;
+	}
+
+	/**
+	 * @return The last 16 bit value written to the register at address
+	 */
+	private int ioWritten16(int address) {
+		int register = address & 0xFFFE;
+		if (register < IO_SIZE && (address & 0xFF0000) == 0)
+			return (io[register] & 0xFF) | ((io[register + 1] & 0xFF) << 8);
+		return ioRead16(address); //Memory control reads back what was written
+	}
+
+	private void ioWrite8(int address, int val) {
+		int register = address & 0xFFFF;
+		if (register < IO_SIZE && (address & 0xFF0000) == 0 && ioHandlers[register >>> 1] instanceof IOByteHandler) {
+			io[register] = (byte) val;
+			setDirty(IO, register);
+			((IOByteHandler) ioHandlers[register >>> 1]).write8(register, val);
+			return;
+		}
+		//Merge with the last value written, reading back could return something else (e.g. a timer counter for its reload)
+		int shift = (address & 0x1) << 3;
+		ioWrite16(address, (ioWritten16(address) & ~(0xFF << shift)) | (val << shift));
+	}
+
+	private void ioWrite16(int address, int val) {
+		int register = address & 0xFFFE;
+		if (register < IO_SIZE && (address & 0xFF0000) == 0) {
+			//Also kept for registers with a handler, for byte writes
+			io[register] = (byte) val;
+			io[register + 1] = (byte) (val >>> 8);
+			setDirty(IO, register);
+			IOHandler handler = ioHandlers[register >>> 1];
+			if (handler != null)
+				handler.write16(register, val);
+		}
+		else if ((register & 0xFFFC) == MEMORY_CONTROL && memoryControl != null)
+			memoryControl.write16(register, val);
+	}
+
+}
@@ -0,0 +1,159 @@
+package cores;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fires events at a given cycle of the Waitstate cycle counter. The CPU runs until the next
+ * event instead of components being polled every step.
+ * <p>
+ * Events are ids handed out by {@link #register(Handler)} and kept in a binary min-heap
+ * ordered by cycle, with their position in the heap stored so that an event can be moved
+ * or cancelled in O(log n).
+ *
+ * @author David Goldman
+ */
+public class Scheduler {
+
+	public static interface Handler {
+		/**
+		 * Called once the cycle counter has reached the cycle the event was scheduled for.
+		 * The event is no longer scheduled, it has to be scheduled again to repeat.
+		 */
+		public void handleEvent(int event);
+	}
+
+	private static final int MAX_EVENTS = 32;
+
+	private final Waitstate wait;
+
+	private final Handler[] handlers = new Handler[MAX_EVENTS];
+	private final long[] cycles = new long[MAX_EVENTS];
+	private final int[] heap = new int[MAX_EVENTS]; //Events ordered by cycle
+	private final int[] positions = new int[MAX_EVENTS]; //Index of each event in heap, -1 if not scheduled
+	private int events, size;
+
+	public Scheduler(Waitstate wait) {
+		this.wait = wait;
+	}
+
+	/**
+	 * @return A new event id for handler
+	 */
+	public int register(Handler handler) {
+		handlers[events] = handler;
+		positions[events] = -1;
+		return events++;
+	}
+
+	public long now() {
+		return wait.getCycles();
+	}
+
+	/**
+	 * @return The cycle of the next event, Long.MAX_VALUE if there is none
+	 */
+	public long next() {
+		return (size == 0) ? Long.MAX_VALUE : cycles[heap[0]];
+	}
+
+	/**
+	 * Schedules event at cycle, moving it if it was already scheduled.
+	 */
+	public void schedule(int event, long cycle) {
+		int pos = positions[event];
+		if (pos == -1) {
+			pos = size++;
+			heap[pos] = event;
+			positions[event] = pos;
+		}
+		else if (cycle > cycles[event]) {
+			cycles[event] = cycle;
+			siftDown(pos);
+			return;
+		}
+		cycles[event] = cycle;
+		siftUp(pos);
+	}
+
+	public void cancel(int event) {
+		int pos = positions[event];
+		if (pos == -1)
+			return;
+		positions[event] = -1;
+		int last = heap[--size];
+		if (pos == size)
+			return;
+		heap[pos] = last;
+		positions[last] = pos;
+		siftUp(pos);
+		siftDown(positions[last]);
+	}
+
+	/**
+	 * Fires every event that is due, in order.
+	 */
+	public void run() {
+		long now = now();
+		while (size > 0 && cycles[heap[0]] <= now) {
+			int event = heap[0];
+			cancel(event);
+			handlers[event].handleEvent(event);
+		}
+	}
+
+	/**
+	 * Writes the cycle of every scheduled event for a save state, events are saved by id so the
+	 * handlers have to be registered in the same order when loading.
+	 */
+	public void save(ByteBuffer state) {
+		state.putInt(events);
+		for (int event = 0; event < events; ++event)
+			state.putLong((positions[event] == -1) ? -1 : cycles[event]);
+	}
+
+	public void load(ByteBuffer state) {
+		for (int event = 0; event < events; ++event)
+			positions[event] = -1;
+		size = 0;
+		int saved = state.getInt();
+		for (int event = 0; event < saved; ++event) {
+			long cycle = state.getLong();
+			if (cycle != -1 && event < events)
+				schedule(event, cycle);
+		}
+	}
+
+	private void siftUp(int pos) {
+		int event = heap[pos];
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (cycles[heap[parent]] <= cycles[event])
+				break;
+			move(heap[parent], pos);
+			pos = parent;
+		}
+		move(event, pos);
+	}
+
+	private void siftDown(int pos) {
+		int event = heap[pos];
+		while (true) {
+			int child = (pos << 1) + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && cycles[heap[child + 1]] < cycles[heap[child]])
+				++child;
+			if (cycles[event] <= cycles[heap[child]])
+				break;
+			move(heap[child], pos);
+			pos = child;
+		}
+		move(event, pos);
+	}
+
+	private void move(int event, int pos) {
+		heap[pos] = event;
+		positions[event] = pos;
+	}
+
+}
@@ -1,142 +1,220 @@
 package cores;
 
-public class Timers {
-
-	private static final short[] PRESCALER_TABLE = { 1, 64, 256, 1024 };
+import java.nio.ByteBuffer;
+
+/**
+ * The four GBA timers. Timers aren't clocked, a running timer only stores the cycle at which
+ * its counter was last valid and the current value is computed when TMxCNT_L is read. The
+ * counter is only brought up to date on reads, control writes and at the overflow event that
+ * is scheduled for each running timer.
+ */
+public class Timers implements Memory.IOHandler, Scheduler.Handler {
+
+	/*
+	 * IO registers (addresses MINUS 0x4000000), timer n is at TM0CNT_L + 4n
+	 */
+	public static final int TM0CNT_L = 0x100;
+	public static final int TM0CNT_H = 0x102;
+	public static final int TM1CNT_L = 0x104;
+	public static final int TM1CNT_H = 0x106;
+	public static final int TM2CNT_L = 0x108;
+	public static final int TM2CNT_H = 0x10A;
+	public static final int TM3CNT_L = 0x10C;
+	public static final int TM3CNT_H = 0x10E;
+
+	private static final int TIMERS = 4;
+
+	/**
+	 * Prescalers of 1, 64, 256 and 1024 cycles as shift amounts.
+	 */
+	private static final byte[] PRESCALER_TABLE = { 0, 6, 8, 10 };
 	private static final int OVERFLOW = 0x10000;
 
-	//Count-Up Timing cannot be used for timer 0 as it is the first timer
-	private int t0Counter, t0Reload, t0Control, t0Precounter;
-	private boolean t0Enabled, t0IRQ;
-	private short t0Prescaler;
-
-	private int t1Counter, t1Reload, t1Control, t1Precounter;
-	private boolean t1Enabled, t1IRQ, t1CountUp;
-	private short t1Prescaler;
-
-	private int t2Counter, t2Reload, t2Control, t2Precounter;
-	private boolean t2Enabled, t2IRQ, t2CountUp;
-	private short t2Prescaler;
-
-	private int t3Counter, t3Reload, t3Control, t3Precounter;
-	private boolean t3Enabled, t3IRQ, t3CountUp;
-	private short t3Prescaler;
-
-	public Timers() {
-		//Prescalers initialize to 1, everything else initializes to 0/false
-		t0Prescaler = t1Prescaler = t2Prescaler = t3Prescaler = 1;
-	}
-	
-	public void step(int clocks) {
-		stepSound(clocks); //Timer 0 and 1 are special sound timers
-		clockTimer2(clocks);
-		clockTimer3(clocks);
-	}
-	
-	private void stepSound(int clocks) {
-		
+	/*
+	 * Timer state, indexed by timer. Count-Up Timing cannot be used for timer 0 as it is the first timer.
+	 */
+	private final int[] counters = new int[TIMERS]; //Value at starts[timer]
+	private final long[] starts = new long[TIMERS]; //Cycle of the last tick counted in counters
+	private final int[] reloads = new int[TIMERS];
+	private final int[] controls = new int[TIMERS];
+	private final byte[] prescalers = new byte[TIMERS];
+	private final boolean[] enabled = new boolean[TIMERS];
+	private final boolean[] irq = new boolean[TIMERS];
+	private final boolean[] countUp = new boolean[TIMERS];
+
+	private final Scheduler scheduler;
+	private final Interrupts interrupts;
+	private final DirectSound sound;
+	private final int overflow0; //Overflow event of timer 0, timer n uses overflow0 + n
+
+	/**
+	 * Set when the counter of a running timer is read, see {@link #pollCounterRead()}.
+	 */
+	private boolean counterRead;
+
+	public Timers(Scheduler scheduler, Interrupts interrupts, DirectSound sound) {
+		this.scheduler = scheduler;
+		this.interrupts = interrupts;
+		this.sound = sound;
+		overflow0 = scheduler.register(this);
+		for (int timer = 1; timer < TIMERS; ++timer)
+			scheduler.register(this);
 	}
 
-	private void clockTimer0(int clocks) {
-		if (t0Enabled) {
-			t0Precounter += clocks;
-			while (t0Precounter >= t0Prescaler) { //It -could- overflow multiple times depending on reload
-				int iterations = Math.min(t0Precounter / t0Prescaler, OVERFLOW - t0Counter);
-				t0Precounter -= iterations * t0Prescaler;
-				t0Counter += iterations;
-				if (t0Counter >= OVERFLOW) { //OVERFLOW (should be equal)
-					t0Counter = t0Reload;
-					triggerTimer0();
-					countUpTimer1();
-				}
-			}
+	@Override
+	public int read16(int register) {
+		int timer = (register - TM0CNT_L) >>> 2;
+		if (timer < 0 || timer >= TIMERS)
+			return 0;
+		if ((register & 0x2) != 0)
+			return controls[timer];
+
+		long now = scheduler.now();
+		if (countUp[timer]) { //Counted by the overflow of the timers before it
+			for (int t = 0; t < timer; ++t)
+				update(t, now);
+			return counters[timer];
 		}
+		if (!enabled[timer])
+			return counters[timer];
+		counterRead = true;
+		long counter = counters[timer] + ((now - starts[timer]) >>> prescalers[timer]);
+		if (counter < OVERFLOW) //Common case, the overflow event hasn't been missed
+			return (int) counter;
+		update(timer, now);
+		return counters[timer];
 	}
 
-	private void clockTimer1(int clocks) {
-		if (t1Enabled && !t1CountUp) {
-			t1Precounter += clocks;
-			while (t1Precounter >= t1Prescaler) { //It -could- overflow multiple times depending on reload
-				int iterations = Math.min(t1Precounter / t1Prescaler, OVERFLOW - t1Counter);
-				t1Precounter -= iterations * t1Prescaler;
-				t1Counter += iterations;
-				if (t1Counter >= OVERFLOW) { //OVERFLOW (should be equal)
-					t1Counter = t1Reload;
-					triggerTimer1();
-					countUpTimer2();
-				}
-			}
-		}
+	/**
+	 * Whether the counter of a running timer was read since the last call. That value changes
+	 * without an event, so a loop polling it isn't idle.
+	 */
+	public boolean pollCounterRead() {
+		boolean read = counterRead;
+		counterRead = false;
+		return read;
 	}
 
-	private void clockTimer2(int clocks) {
-		if (t2Enabled && !t2CountUp) {
-			t2Precounter += clocks;
-			while (t2Precounter >= t2Prescaler) { //It -could- overflow multiple times depending on reload
-				int iterations = Math.min(t2Precounter / t2Prescaler, OVERFLOW - t2Counter);
-				t2Precounter -= iterations * t2Prescaler;
-				t2Counter += iterations;
-				if (t2Counter >= OVERFLOW) { //OVERFLOW (should be equal)
-					t2Counter = t2Reload;
-					triggerTimer2();
-					countUpTimer3();
-				}
-			}
+	@Override
+	public void write16(int register, int value) {
+		int timer = (register - TM0CNT_L) >>> 2;
+		if (timer < 0 || timer >= TIMERS)
+			return;
+		if ((register & 0x2) == 0) {
+			reloads[timer] = value;
+			return;
 		}
-	}
 
-	private void clockTimer3(int clocks) {
-		if (t3Enabled && !t3CountUp) {
-			t3Precounter += clocks;
-			while (t3Precounter >= t3Prescaler) { //It -could- overflow multiple times depending on reload
-				int iterations = Math.min(t3Precounter / t3Prescaler, OVERFLOW - t3Counter);
-				t3Precounter -= iterations * t3Prescaler;
-				t3Counter += iterations;
-				if (t3Counter >= OVERFLOW) { //OVERFLOW (should be equal)
-					t3Counter = t3Reload;
-					triggerTimer3();
-				}
-			}
-		}
+		long now = scheduler.now();
+		update(timer, now);
+		boolean start = (value & 0x80) == 0x80;
+		if (!enabled[timer] && start) //Starting reloads the counter
+			counters[timer] = reloads[timer];
+		if (!enabled[timer] || countUp[timer])
+			starts[timer] = now;
+		controls[timer] = value & ((timer == 0) ? 0xC3 : 0xC7);
+		prescalers[timer] = PRESCALER_TABLE[value & 0x3];
+		countUp[timer] = timer != 0 && (value & 0x4) == 0x4;
+		irq[timer] = (value & 0x40) == 0x40;
+		enabled[timer] = start;
+		scheduleOverflow(timer);
 	}
 
-	private void triggerTimer0() {
-
+	/**
+	 * Writes the timers for a save state, their overflow events are saved by the Scheduler.
+	 */
+	public void save(ByteBuffer state) {
+		for (int timer = 0; timer < TIMERS; ++timer)
+			state.putInt(counters[timer]).putLong(starts[timer]).putInt(reloads[timer]).putInt(controls[timer]);
 	}
 
-	private void triggerTimer1() {
+	public void load(ByteBuffer state) {
+		for (int timer = 0; timer < TIMERS; ++timer) {
+			counters[timer] = state.getInt();
+			starts[timer] = state.getLong();
+			reloads[timer] = state.getInt();
+			int control = controls[timer] = state.getInt();
+			prescalers[timer] = PRESCALER_TABLE[control & 0x3];
+			countUp[timer] = (control & 0x4) == 0x4;
+			irq[timer] = (control & 0x40) == 0x40;
+			enabled[timer] = (control & 0x80) == 0x80;
+		}
+		counterRead = false;
+	}
 
+	@Override
+	public void handleEvent(int event) {
+		int timer = event - overflow0;
+		update(timer, scheduler.now());
+		scheduleOverflow(timer);
 	}
-	
-	private void triggerTimer2() {
 
+	/**
+	 * Schedules the next overflow of timer if it is running. Count-up timers only overflow when
+	 * the previous timer does, so they don't need their own event.
+	 */
+	private void scheduleOverflow(int timer) {
+		if (enabled[timer] && !countUp[timer])
+			scheduler.schedule(overflow0 + timer, starts[timer] + ((long) (OVERFLOW - counters[timer]) << prescalers[timer]));
+		else
+			scheduler.cancel(overflow0 + timer);
 	}
-	
-	private void triggerTimer3() {
 
+	/**
+	 * Brings the counter of a (not count-up) timer up to now.
+	 */
+	private void update(int timer, long now) {
+		if (!enabled[timer] || countUp[timer])
+			return;
+		long ticks = (now - starts[timer]) >>> prescalers[timer];
+		starts[timer] += ticks << prescalers[timer];
+		int overflows = tick(timer, ticks);
+		if (overflows != 0)
+			overflow(timer, overflows);
 	}
 
-	private void countUpTimer1() {
-		if (t1Enabled && t1CountUp && (++t1Counter) >= OVERFLOW) {
-			t1Counter = t1Reload;
-			triggerTimer1();
-			countUpTimer2();
+	/**
+	 * Advance the counter of timer.
+	 *
+	 * @return How many times the timer overflowed
+	 */
+	private int tick(int timer, long ticks) {
+		long counter = counters[timer] + ticks;
+		if (counter < OVERFLOW) {
+			counters[timer] = (int) counter;
+			return 0;
 		}
+		//It -could- overflow multiple times depending on reload
+		int period = OVERFLOW - reloads[timer];
+		long extra = counter - OVERFLOW;
+		counters[timer] = reloads[timer] + (int) (extra % period);
+		return (int) (extra / period) + 1;
 	}
 
-	private void countUpTimer2() {
-		if (t2Enabled && t2CountUp && (++t2Counter) >= OVERFLOW) {
-			t2Counter = t2Reload;
-			triggerTimer2();
-			countUpTimer3();
+	/**
+	 * Handle overflows of timer, cascading into the count-up timers after it.
+	 */
+	private void overflow(int timer, int overflows) {
+		while (true) {
+			if (irq[timer])
+				interrupts.request(Interrupts.TIMER0 << timer);
+			if (timer <= 1) //Timer 0 and 1 are special sound timers
+				stepSound(timer, overflows);
+
+			if (++timer == TIMERS || !enabled[timer] || !countUp[timer])
+				break;
+			overflows = tick(timer, overflows);
+			if (overflows == 0)
+				break;
 		}
 	}
-	
-	private void countUpTimer3() {
-		if (t3Enabled && t3CountUp && (++t3Counter) >= OVERFLOW) {
-			t3Counter = t3Reload;
-			triggerTimer3();
-		}
+
+	/**
+	 * Called when the sound timers overflow, each overflow makes the DirectSound channels that
+	 * use timer read the next sample from their FIFO.
+	 */
+	private void stepSound(int timer, int overflows) {
+		sound.timerOverflow(timer, overflows);
 	}
 
 }
@@ -1,9 +1,19 @@
 package cores;
 
-public class Waitstate {
+import java.nio.ByteBuffer;
+
+public class Waitstate implements Memory.IOHandler {
+
+	/*
+	 * IO registers (addresses MINUS 0x4000000)
+	 */
+	public static final int WAITCNT = 0x204;
 
 	private static final int[] WAIT_TABLE = { 4, 3, 2, 8 };
 
+	private static final int PAGES = 0x100;
+	private static final int PREFETCH_SIZE = 8; //Halfwords
+
 	private int state0First, state0Second;
 	private int state1First, state1Second;
 	private int state2First, state2Second;
@@ -12,7 +22,32 @@ public class Waitstate {
 	private int waitCNT, configWRAM;
 	private int postBoot;
 	
-	private boolean prefetch, nonSequential; 
+	private boolean prefetch;
+
+	/*
+	 * Access times in cycles, indexed by bit 31-24 of the address (the same pages as Memory).
+	 * Rebuilt by update() whenever the waitstates change, 8 bit accesses take as long as 16 bit ones.
+	 */
+	private final int[] nonSeq16 = new int[PAGES];
+	private final int[] seq16 = new int[PAGES];
+	private final int[] nonSeq32 = new int[PAGES];
+	private final int[] seq32 = new int[PAGES];
+
+	/**
+	 * Cycles elapsed since power on.
+	 */
+	private long cycles;
+
+	/*
+	 * The addresses that would continue the current opcode fetch / data access sequentially
+	 */
+	private int fetchNext = -1, dataNext = -1;
+	private int fetchPage;
+
+	/*
+	 * GamePak prefetch buffer: halfwords already fetched after fetchNext, and cycles spent on the next one
+	 */
+	private int prefetched, prefetchCycles;
 
 	public Waitstate() {
 		state0First = state1First = state2First = 4;
@@ -20,10 +55,132 @@ public class Waitstate {
 		state1Second = 4;
 		state2Second = 8;
 		stateSRAM = 4;
-		configWRAM = 0xD000020; //4000800h - 32bit - Undocumented - Internal Memory Control (R/W)
-		stateWRAM = 3;
+		setConfigWRAM(0xD000020); //4000800h - 32bit - Undocumented - Internal Memory Control (R/W)
 	}
-	
+
+	private void update() {
+		for (int page = 0; page < PAGES; ++page)
+			nonSeq16[page] = seq16[page] = nonSeq32[page] = seq32[page] = 1;
+
+		nonSeq16[Memory.EWRAM] = seq16[Memory.EWRAM] = 1 + stateWRAM;
+		nonSeq32[Memory.EWRAM] = seq32[Memory.EWRAM] = 2 * (1 + stateWRAM); //16 bit bus
+		nonSeq32[Memory.PALETTE] = seq32[Memory.PALETTE] = 2; //16 bit bus
+		nonSeq32[Memory.VRAM] = seq32[Memory.VRAM] = 2; //16 bit bus
+
+		updateROM(Memory.ROM, state0First, state0Second);
+		updateROM(Memory.ROM + 2, state1First, state1Second);
+		updateROM(Memory.ROM + 4, state2First, state2Second);
+		for (int page = Memory.SRAM; page <= Memory.SRAM + 1; ++page) //8 bit bus, only bytes are read
+			nonSeq16[page] = seq16[page] = nonSeq32[page] = seq32[page] = 1 + stateSRAM;
+	}
+
+	private void updateROM(int page, int first, int second) {
+		for (int mirror = page; mirror <= page + 1; ++mirror) { //16 bit bus, a word is a N + S access
+			nonSeq16[mirror] = 1 + first;
+			seq16[mirror] = 1 + second;
+			nonSeq32[mirror] = (1 + first) + (1 + second);
+			seq32[mirror] = 2 * (1 + second);
+		}
+	}
+
+	private static boolean isROM(int page) {
+		return page >= Memory.ROM && page < Memory.SRAM;
+	}
+
+	public long getCycles() {
+		return cycles;
+	}
+
+	/**
+	 * Let time pass until cycle without any bus activity (e.g. the CPU is idle).
+	 */
+	public void skipTo(long cycle) {
+		if (cycle > cycles)
+			cycles = cycle;
+	}
+
+	/**
+	 * Clock an opcode fetch. Sequential fetches from ROM take 1 cycle if the prefetch buffer has the data.
+	 */
+	public void fetch16(int address) {
+		int page = address >>> 24;
+		if (address != fetchNext || page != fetchPage) {
+			cycles += nonSeq16[page];
+			prefetched = prefetchCycles = 0;
+		}
+		else if (prefetched > 0) {
+			--prefetched;
+			++cycles;
+		}
+		else
+			cycles += seq16[page];
+		fetchNext = address + 2;
+		fetchPage = page;
+		dataNext = -1;
+	}
+
+	public void fetch32(int address) {
+		int page = address >>> 24;
+		if (address != fetchNext || page != fetchPage) {
+			cycles += nonSeq32[page];
+			prefetched = prefetchCycles = 0;
+		}
+		else if (prefetched >= 2) {
+			prefetched -= 2;
+			++cycles;
+		}
+		else if (prefetched == 1) { //Second halfword is still being fetched
+			prefetched = 0;
+			cycles += seq16[page];
+		}
+		else
+			cycles += seq32[page];
+		fetchNext = address + 4;
+		fetchPage = page;
+		dataNext = -1;
+	}
+
+	/**
+	 * Clock a data access, 8 bit accesses are clocked as 16 bit.
+	 */
+	public void access16(int address) {
+		int page = address >>> 24;
+		int time = (address == dataNext) ? seq16[page] : nonSeq16[page];
+		dataNext = address + 2;
+		access(page, time);
+	}
+
+	public void access32(int address) {
+		int page = address >>> 24;
+		int time = (address == dataNext) ? seq32[page] : nonSeq32[page];
+		dataNext = address + 4;
+		access(page, time);
+	}
+
+	private void access(int page, int time) {
+		cycles += time;
+		if (isROM(page)) { //The GamePak bus is taken, the opcode sequence and prefetch are lost
+			fetchNext = -1;
+			prefetched = prefetchCycles = 0;
+		}
+		else
+			prefetch(time);
+	}
+
+	/**
+	 * While code runs from ROM and the GamePak bus is idle, the prefetch unit keeps reading halfwords.
+	 */
+	private void prefetch(int time) {
+		if (!prefetch || !isROM(fetchPage) || prefetched == PREFETCH_SIZE)
+			return;
+		prefetchCycles += time;
+		int next = seq16[fetchPage];
+		while (prefetchCycles >= next && prefetched < PREFETCH_SIZE) {
+			prefetchCycles -= next;
+			++prefetched;
+		}
+	}
+
 	public int getWaitCNT() {
 		return waitCNT;
 	}
@@ -39,6 +196,7 @@ public class Waitstate {
 		state2First = WAIT_TABLE[(i >>> 8) & 0x3];
 		state2Second = ((i & 0x400) == 0x400) ? 1 : 8;
 		prefetch = ((i & 0x4000) == 0x4000);
+		update();
 	}
 	
 	public int getPostBoot() {
@@ -48,9 +206,64 @@ public class Waitstate {
 	public void setPostBoot(int i) {
 		postBoot = i;
 	}
+
+	public int getConfigWRAM() {
+		return configWRAM;
+	}
+
+	public void setConfigWRAM(int i) {
+		configWRAM = i;
+		stateWRAM = 15 - ((i >>> 24) & 0xF); //Bit 24-27, 0xE is 1 waitstate, 0xD is 2
+		update();
+	}
+
+	/**
+	 * Writes the state for a save state, the access tables are rebuilt by {@link #load(ByteBuffer)}.
+	 */
+	public void save(ByteBuffer state) {
+		state.putInt(waitCNT).putInt(configWRAM).putInt(postBoot).putLong(cycles);
+		state.putInt(fetchNext).putInt(dataNext).putInt(fetchPage).putInt(prefetched).putInt(prefetchCycles);
+	}
+
+	public void load(ByteBuffer state) {
+		setWaitCNT(state.getInt());
+		setConfigWRAM(state.getInt());
+		postBoot = state.getInt();
+		cycles = state.getLong();
+		fetchNext = state.getInt();
+		dataNext = state.getInt();
+		fetchPage = state.getInt();
+		prefetched = state.getInt();
+		prefetchCycles = state.getInt();
+	}
+
+	@Override
+	public int read16(int register) {
+		switch(register) {
+		case WAITCNT: return getWaitCNT();
+		case Memory.MEMORY_CONTROL: return getConfigWRAM() & 0xFFFF;
+		case Memory.MEMORY_CONTROL + 2: return getConfigWRAM() >>> 16;
+		default: return 0;
+		}
+	}
+
+	@Override
+	public void write16(int register, int value) {
+		switch(register) {
+		case WAITCNT: setWaitCNT(value); break;
+		case Memory.MEMORY_CONTROL: setConfigWRAM((getConfigWRAM() & 0xFFFF0000) | value); break;
+		case Memory.MEMORY_CONTROL + 2: setConfigWRAM((getConfigWRAM() & 0xFFFF) | (value << 16)); break;
+		}
+	}
 	
 	public void internalCycles(int cycles) {
-		//TODO clock internal cycles, prefetch/prefetch disable bug
+		this.cycles += cycles;
+		if (isROM(fetchPage)) {
+			if (prefetch)
+				prefetch(cycles);
+			else //Prefetch disable bug: the next opcode fetch from ROM is non sequential
+				fetchNext = -1;
+		}
 	}
 	
 	public void clockMUL(int op2) {
@@ -0,0 +1,136 @@
+package cpu;
+
+import java.lang.reflect.Field;
+
+/**
+ * Checks ARMProcessor's DECODE_TABLE against the nested switch it replaced. Every one of the
+ * 4096 table indices is tried with every value of bit 19-8 (the other bits the old decoder
+ * looked at), and the handler picked by the table plus the checks left in dispatch() and the
+ * handlers has to match what the switch called.
+ * <p>
+ * Usage: java cpu.ARMDecodeCheck
+ *
+ * @author David Goldman
+ */
+public class ARMDecodeCheck {
+
+	/*
+	 * Handler names, in the order of the handler indices in ARMProcessor
+	 */
+	private static final String[] HANDLERS = {
+		"DATA_PROC_PSR_REG", "DATA_PROC_PSR_IMM", "BRANCH_AND_EXCHANGE", "MULTIPLY", "MULTIPLY_LONG",
+		"ILLEGAL_MULTIPLY", "SINGLE_DATA_SWAP", "ILLEGAL_SWAP", "HALFWORD_DT_IMM_POST", "HALFWORD_DT_REG_POST",
+		"HALFWORD_DT_IMM_PRE", "HALFWORD_DT_REG_PRE", "SINGLE_DT_IMM_POST", "SINGLE_DT_IMM_PRE", "SINGLE_DT_REG_POST",
+		"SINGLE_DT_REG_PRE", "UNDEFINED_TRAP", "BLOCK_DT_POST", "BLOCK_DT_PRE", "BRANCH",
+		"BRANCH_LINK", "COPROC_DT_POST", "COPROC_DT_PRE", "COPROC_DATA_OPERATION", "COPROC_REGISTER_TRANSFER",
+		"SOFTWARE_INTERRUPT",
+	};
+
+	/**
+	 * The decoder from before the table, with each call replaced by the name of what it called.
+	 */
+	private static String switchDecode(int instr) {
+		byte bit27_to_24 = (byte) ((instr >>> 24) & 0xF);
+		byte bit23_to_20 = (byte) ((instr >>> 20) & 0xF);
+
+		switch(bit27_to_24) {
+		case 0x0:
+			if ((instr & 0x10) == 0 || (instr & 0x80) == 0) //Bit 4 or bit 7 clear
+				return "DATA_PROC_PSR_REG";
+			else if ((instr & 0x60) == 0) { //Bit 6,5 are CLEAR
+				if ((bit23_to_20 & 0xC) == 0)
+					return "MULTIPLY";
+				else if ((bit23_to_20 & 0x8) == 0x8)
+					return "MULTIPLY_LONG";
+				else
+					return "Illegal multiply varation";
+			}
+			else { //Bit 6,5 are NOT both CLEAR, implies Halfword DT
+				if ((bit23_to_20 & 0x4) == 0x4) //Bit 22 is SET
+					return "HALFWORD_DT_IMM_POST";
+				else if ((instr & 0xF00) == 0) //Bit 22 is CLEAR AND Bit 11-8 CLEAR
+					return "HALFWORD_DT_REG_POST";
+				else
+					return "Illegal (post) halfword data transfer variation";
+			}
+		case 0x1:
+			if ((instr & 0xFFFFF0) == 0x2FFF10)  //0x12FFF1, Rn
+				return "BRANCH_AND_EXCHANGE";
+			else if ((instr & 0x10) == 0 || (instr & 0x80) == 0) //Bit 4 or bit 7 clear
+				return "DATA_PROC_PSR_REG";
+			else if ((instr & 0x60) == 0) { //Bit 6,5 are CLEAR
+				if ((bit23_to_20 & 0xB) == 0 && (instr & 0xF00) == 0) //Bit 27-25 CLEAR, Bit 24 SET, BIT 23,21,20 CLEAR, Bit 11-8 CLEAR
+					return "SINGLE_DATA_SWAP";
+				else
+					return "Illegal single data swap variation";
+			}
+			else { //Bit 6,5 are NOT both CLEAR, implies Halfword DT
+				if ((bit23_to_20 & 0x4) == 0x4) //Bit 22 is SET
+					return "HALFWORD_DT_IMM_PRE";
+				else if ((instr & 0xF00) == 0) //Bit 22 is CLEAR AND Bit 11-8 CLEAR
+					return "HALFWORD_DT_REG_PRE";
+				else
+					return "Illegal (pre) halfword data transfer variation";
+			}
+		case 0x2: return "DATA_PROC_PSR_IMM";
+		case 0x3: return "DATA_PROC_PSR_IMM";
+		case 0x4: return "SINGLE_DT_IMM_POST";
+		case 0x5: return "SINGLE_DT_IMM_PRE";
+		case 0x6: return ((instr & 0x10) == 0) ? "SINGLE_DT_REG_POST" : "UNDEFINED_TRAP";
+		case 0x7: return ((instr & 0x10) == 0) ? "SINGLE_DT_REG_PRE" : "UNDEFINED_TRAP";
+		case 0x8: return "BLOCK_DT_POST";
+		case 0x9: return "BLOCK_DT_PRE";
+		case 0xA: return "BRANCH";
+		case 0xB: return "BRANCH_LINK";
+		case 0xC: return "COPROC_DT_POST";
+		case 0xD: return "COPROC_DT_PRE";
+		case 0xE: return ((instr & 0x10) == 0) ? "COPROC_DATA_OPERATION" : "COPROC_REGISTER_TRANSFER";
+		default: return "SOFTWARE_INTERRUPT";
+		}
+	}
+
+	/**
+	 * What the table handler ends up calling, including the bits it checks itself
+	 * (see ARMProcessor.dispatch(), singleDataSwap() and halfwordDTReg*()).
+	 */
+	private static String tableDecode(byte[] table, int instr) {
+		String handler = HANDLERS[table[((instr >>> 16) & 0xFF0) | ((instr >>> 4) & 0xF)]];
+		boolean bits11to8 = (instr & 0xF00) != 0;
+		switch(handler) {
+		case "BRANCH_AND_EXCHANGE": return ((instr & 0xFFF00) == 0xFFF00) ? handler : "DATA_PROC_PSR_REG";
+		case "ILLEGAL_MULTIPLY": return "Illegal multiply varation";
+		case "ILLEGAL_SWAP": return "Illegal single data swap variation";
+		case "SINGLE_DATA_SWAP": return (bits11to8) ? "Illegal single data swap variation" : handler;
+		case "HALFWORD_DT_REG_POST": return (bits11to8) ? "Illegal (post) halfword data transfer variation" : handler;
+		case "HALFWORD_DT_REG_PRE": return (bits11to8) ? "Illegal (pre) halfword data transfer variation" : handler;
+		default: return handler;
+		}
+	}
+
+	public static void main(String[] args) throws ReflectiveOperationException {
+		for (int i = 0; i < HANDLERS.length; ++i) { //The names have to match the indices
+			Field field = ARMProcessor.class.getDeclaredField(HANDLERS[i]);
+			field.setAccessible(true);
+			if (field.getByte(null) != i)
+				throw new IllegalStateException(HANDLERS[i] + " is " + field.getByte(null) + ", expected " + i);
+		}
+		Field field = ARMProcessor.class.getDeclaredField("DECODE_TABLE");
+		field.setAccessible(true);
+		byte[] table = (byte[]) field.get(null);
+
+		int mismatches = 0;
+		for (int index = 0; index < 0x1000; ++index) {
+			for (int bits19to8 = 0; bits19to8 < 0x1000; ++bits19to8) {
+				int instr = 0xE0000000 | ((index & 0xFF0) << 16) | (bits19to8 << 8) | ((index & 0xF) << 4);
+				String expected = switchDecode(instr);
+				String actual = tableDecode(table, instr);
+				if (!expected.equals(actual) && mismatches++ < 20)
+					System.out.println(Integer.toHexString(instr) + ": switch " + expected + ", table " + actual);
+			}
+		}
+		System.out.println((mismatches == 0) ? "All 4096 indices match" : mismatches + " mismatches");
+		if (mismatches != 0)
+			System.exit(1);
+	}
+
+}
@@ -1,5 +1,7 @@
 package cpu;
 
+import java.util.Arrays;
+
 import static cpu.ARMDataOpCode.ADC;
 import static cpu.ARMDataOpCode.ADD;
 import static cpu.ARMDataOpCode.AND;
@@ -61,6 +63,108 @@ public class ARMProcessor implements CPU.IProcessor {
 			cpu.setReg(reg, val);
 	}
 
+	/*
+	 * Handler indices for the decode table. Each entry of DECODE_TABLE maps the
+	 * bits 27-20 and 7-4 of an instruction to one of these handlers.
+	 */
+	private static final byte DATA_PROC_PSR_REG = 0;
+	private static final byte DATA_PROC_PSR_IMM = 1;
+	private static final byte BRANCH_AND_EXCHANGE = 2;
+	private static final byte MULTIPLY = 3;
+	private static final byte MULTIPLY_LONG = 4;
+	private static final byte ILLEGAL_MULTIPLY = 5;
+	private static final byte SINGLE_DATA_SWAP = 6;
+	private static final byte ILLEGAL_SWAP = 7;
+	private static final byte HALFWORD_DT_IMM_POST = 8;
+	private static final byte HALFWORD_DT_REG_POST = 9;
+	private static final byte HALFWORD_DT_IMM_PRE = 10;
+	private static final byte HALFWORD_DT_REG_PRE = 11;
+	private static final byte SINGLE_DT_IMM_POST = 12;
+	private static final byte SINGLE_DT_IMM_PRE = 13;
+	private static final byte SINGLE_DT_REG_POST = 14;
+	private static final byte SINGLE_DT_REG_PRE = 15;
+	private static final byte UNDEFINED_TRAP = 16;
+	private static final byte BLOCK_DT_POST = 17;
+	private static final byte BLOCK_DT_PRE = 18;
+	private static final byte BRANCH = 19;
+	private static final byte BRANCH_LINK = 20;
+	private static final byte COPROC_DT_POST = 21;
+	private static final byte COPROC_DT_PRE = 22;
+	private static final byte COPROC_DATA_OPERATION = 23;
+	private static final byte COPROC_REGISTER_TRANSFER = 24;
+	private static final byte SOFTWARE_INTERRUPT = 25;
+
+	/**
+	 * Map from ((bit 27-20) << 4 | (bit 7-4)) to the handler for that instruction.
+	 * The few encodings that also depend on other bits (branch and exchange, swaps,
+	 * halfword register transfers) check the remaining bits in their handler.
+	 */
+	private static final byte[] DECODE_TABLE = new byte[0x1000];
+
+	static {
+		for (int i = 0; i < DECODE_TABLE.length; ++i)
+			DECODE_TABLE[i] = decode(((i & 0xFF0) << 16) | ((i & 0xF) << 4));
+	}
+
+	/**
+	 * Decodes an instruction using only bits 27-20 and 7-4. Used once to build the decode table.
+	 */
+	private static byte decode(int instr) {
+		byte bit27_to_24 = (byte) ((instr >>> 24) & 0xF);
+		byte bit23_to_20 = (byte) ((instr >>> 20) & 0xF);
+
+		switch(bit27_to_24) {
+		case 0x0:
+			if ((instr & 0x10) == 0 || (instr & 0x80) == 0) //Bit 4 or bit 7 clear
+				return DATA_PROC_PSR_REG;
+			else if ((instr & 0x60) == 0) { //Bit 6,5 are CLEAR
+				if ((bit23_to_20 & 0xC) == 0)
+					return MULTIPLY;
+				else if ((bit23_to_20 & 0x8) == 0x8)
+					return MULTIPLY_LONG;
+				else
+					return ILLEGAL_MULTIPLY;
+			}
+			else { //Bit 6,5 are NOT both CLEAR, implies Halfword DT
+				if ((bit23_to_20 & 0x4) == 0x4) //Bit 22 is SET
+					return HALFWORD_DT_IMM_POST;
+				else //Bit 22 is CLEAR, Bit 11-8 are checked by the handler
+					return HALFWORD_DT_REG_POST;
+			}
+		case 0x1:
+			if (bit23_to_20 == 0x2 && (instr & 0xF0) == 0x10) //0x12FFF1, Rn - Bit 19-8 are checked by the handler
+				return BRANCH_AND_EXCHANGE;
+			else if ((instr & 0x10) == 0 || (instr & 0x80) == 0) //Bit 4 or bit 7 clear
+				return DATA_PROC_PSR_REG;
+			else if ((instr & 0x60) == 0) { //Bit 6,5 are CLEAR
+				if ((bit23_to_20 & 0xB) == 0) //Bit 23,21,20 CLEAR, Bit 11-8 are checked by the handler
+					return SINGLE_DATA_SWAP;
+				else
+					return ILLEGAL_SWAP;
+			}
+			else { //Bit 6,5 are NOT both CLEAR, implies Halfword DT
+				if ((bit23_to_20 & 0x4) == 0x4) //Bit 22 is SET
+					return HALFWORD_DT_IMM_PRE;
+				else //Bit 22 is CLEAR, Bit 11-8 are checked by the handler
+					return HALFWORD_DT_REG_PRE;
+			}
+		case 0x2: return DATA_PROC_PSR_IMM;
+		case 0x3: return DATA_PROC_PSR_IMM;
+		case 0x4: return SINGLE_DT_IMM_POST;
+		case 0x5: return SINGLE_DT_IMM_PRE;
+		case 0x6: return ((instr & 0x10) == 0) ? SINGLE_DT_REG_POST : UNDEFINED_TRAP; //Bit 4 CLEAR
+		case 0x7: return ((instr & 0x10) == 0) ? SINGLE_DT_REG_PRE : UNDEFINED_TRAP; //Bit 4 CLEAR
+		case 0x8: return BLOCK_DT_POST;
+		case 0x9: return BLOCK_DT_PRE;
+		case 0xA: return BRANCH;
+		case 0xB: return BRANCH_LINK;
+		case 0xC: return COPROC_DT_POST;
+		case 0xD: return COPROC_DT_PRE;
+		case 0xE: return ((instr & 0x10) == 0) ? COPROC_DATA_OPERATION : COPROC_REGISTER_TRANSFER; //Bit 4 CLEAR
+		default: return SOFTWARE_INTERRUPT;
+		}
+	}
+
 	/**
 	 * Given the pc, accesses the cartridge ROM and retrieves the current operation bytes.
 	 * If the evaluated condition is true, an operation will be decoded and executed.
@@ -69,88 +173,226 @@ public class ARMProcessor implements CPU.IProcessor {
 	 */
 	@Override
 	public void execute(int pc) {
-		//TODO Get instruction
-		int instr = 0;
+		int instr = cpu.memory.read32(pc);
+		cpu.wait.fetch32(pc + 8); //The pipeline fetches two instructions ahead
 		cpu.execute = instr;
 
 		/*Top four bits of top are the condition codes
 		  Byte indices start at 0, domain [0, 31]*/
-		if (Condition.condition((byte) (instr >>> 28), cpu.cpsr)) {
-			byte bit27_to_24 = (byte) ((instr >>> 24) & 0xF);
-			byte bit23_to_20 = (byte) ((instr >>> 20) & 0xF);
-
-			switch(bit27_to_24) {
-			case 0x0:
-				if ((instr & 0x10) == 0 || (instr & 0x80) == 0) //Bit 4 or bit 7 clear
-					dataProcPSRReg(instr);
-				else if ((instr & 0x60) == 0) { //Bit 6,5 are CLEAR
-					if ((bit23_to_20 & 0xC) == 0)
-						multiply(instr);
-					else if ((bit23_to_20 & 0x8) == 0x8)
-						multiplyLong(instr);
-					else
-						cpu.undefinedInstr("Illegal multiply varation");
-				}
-				else { //Bit 6,5 are NOT both CLEAR, implies Halfword DT
-					if ((bit23_to_20 & 0x4) == 0x4) //Bit 22 is SET
-						halfwordDTImmPost(instr);
-					else if ((instr & 0xF00) == 0) //Bit 22 is CLEAR AND Bit 11-8 CLEAR
-						halfwordDTRegPost(instr);
-					else
-						cpu.undefinedInstr("Illegal (post) halfword data transfer variation");
-				}
-				break;
-			case 0x1:
-				if ((instr & 0xFFFFF0) == 0x2FFF10)  //0x12FFF1, Rn
-					branchAndExchange(instr);
-				else if ((instr & 0x10) == 0 || (instr & 0x80) == 0) //Bit 4 or bit 7 clear
-					dataProcPSRReg(instr); 
-				else if ((instr & 0x60) == 0) { //Bit 6,5 are CLEAR
-					if ((bit23_to_20 & 0xB) == 0 && (instr & 0xF00) == 0) //Bit 27-25 CLEAR, Bit 24 SET, BIT 23,21,20 CLEAR, Bit 11-8 CLEAR
-						singleDataSwap(instr);
-					else
-						cpu.undefinedInstr("Illegal single data swap variation");
-				}
-				else { //Bit 6,5 are NOT both CLEAR, implies Halfword DT
-					if ((bit23_to_20 & 0x4) == 0x4) //Bit 22 is SET
-						halfwordDTImmPre(instr);
-					else if ((instr & 0xF00) == 0) //Bit 22 is CLEAR AND Bit 11-8 CLEAR
-						halfwordDTRegPre(instr);
-					else
-						cpu.undefinedInstr("Illegal (pre) halfword data transfer variation");
-				}
-				break;
-			case 0x2: dataProcPSRImm(instr); break;
-			case 0x3: dataProcPSRImm(instr); break;
-			case 0x4: singleDataTransferImmPost(instr); break;
-			case 0x5: singleDataTransferImmPre(instr); break;
-			case 0x6: 
-				if ((instr & 0x10) == 0) /*Bit 4 CLEAR*/
-					singleDataTransferRegPost(instr);
-				else
-					undefinedTrap();
-				break;
-			case 0x7:
-				if ((instr & 0x10) == 0) /*Bit 4 CLEAR*/
-					singleDataTransferRegPre(instr);
-				else
-					undefinedTrap();
+		if (Condition.condition((byte) (instr >>> 28), cpu.cpsr)) 
+			dispatch(instr, DECODE_TABLE[((instr >>> 16) & 0xFF0) | ((instr >>> 4) & 0xF)]);
+	}
+
+	private static final int MAX_BLOCK_LENGTH = BlockCache.MAX_BLOCK_BYTES >>> 2;
+
+	/**
+	 * Fetches and decodes the basic block starting at pc. The block ends after the first
+	 * instruction that may write to the PC, or before the first one that has to stay in the
+	 * interpreter (coprocessor and undefined instructions).
+	 *
+	 * @return The block, or null if the instruction at pc can't be cached
+	 */
+	protected Block decodeBlock(int pc) {
+		int[] instrs = new int[MAX_BLOCK_LENGTH];
+		byte[] handlers = new byte[MAX_BLOCK_LENGTH];
+		int length = 0;
+		while (length < MAX_BLOCK_LENGTH) {
+			int instr = cpu.memory.read32(pc + (length << 2)); //Not a timed access
+			byte handler = DECODE_TABLE[((instr >>> 16) & 0xFF0) | ((instr >>> 4) & 0xF)];
+			if (!cacheable(handler))
 				break;
-			case 0x8: blockDataTransferPost(instr); break;
-			case 0x9: blockDataTransferPre(instr); break;
-			case 0xA: branch(instr); break;
-			case 0xB: branchLink(instr); break;
-			case 0xC: coprocDataTransferPost(instr); break;
-			case 0xD: coprocDataTransferPre(instr); break;
-			case 0xE:
-				if ((instr & 0x10) == 0) /*Bit 4 CLEAR*/
-					coprocDataOperation(instr);
-				else
-					coprocRegisterTransfer(instr);
+			instrs[length] = instr;
+			handlers[length++] = handler;
+			if (endsBlock(instr, handler))
 				break;
-			case 0xF: softwareInterrupt(instr); break;
+		}
+		if (length == 0)
+			return null;
+
+		int end = pc + (length << 2);
+		int last = instrs[length - 1];
+		int target = end;
+		if (handlers[length - 1] == BRANCH || handlers[length - 1] == BRANCH_LINK)
+			target = end + 4 + ((last << 8) >> 6); //r15 of the branch is end + 4
+		Block block = new Block(false, pc, end, target, Arrays.copyOf(instrs, length), Arrays.copyOf(handlers, length));
+		block.idle = idleLoop(block);
+		return block;
+	}
+
+	/*
+	 * Flags set by an instruction, see idleLoop()
+	 */
+	private static final byte FLAGS_NONE = 0;
+	private static final byte FLAGS_NZ = 1;
+	private static final byte FLAGS_NZCV = 2;
+
+	/**
+	 * Whether block is a polling loop: it branches back to its start, reads at most one address,
+	 * and every pass computes its registers and flags from scratch (nothing is carried from the
+	 * previous pass). Until something else changes memory, another pass changes nothing.
+	 * Only unconditional data processing without carry in and loads without writeback are allowed.
+	 */
+	private static boolean idleLoop(Block block) {
+		if (block.target != block.start || block.handlers[block.handlers.length - 1] != BRANCH)
+			return false;
+		int[] instrs = block.instrs;
+		byte[] handlers = block.handlers;
+		int length = instrs.length;
+
+		int loopWrites = 0;
+		for (int i = 0; i < length - 1; ++i) {
+			if ((instrs[i] >>> 28) != 0xE || loopReads(instrs[i], handlers[i]) == -1) //AL
+				return false;
+			loopWrites |= loopWrites(instrs[i], handlers[i]);
+		}
+
+		int written = 0, loads = 0;
+		byte flags = FLAGS_NONE;
+		for (int i = 0; i < length - 1; ++i) {
+			int instr = instrs[i];
+			byte handler = handlers[i];
+			if ((loopReads(instr, handler) & loopWrites & ~written) != 0) //Value from the previous pass
+				return false;
+			written |= loopWrites(instr, handler);
+			if (handler != DATA_PROC_PSR_REG && handler != DATA_PROC_PSR_IMM && ++loads > 1)
+				return false;
+			if ((handler == DATA_PROC_PSR_REG || handler == DATA_PROC_PSR_IMM) && (instr & 0x100000) == 0x100000) {
+				byte opcode = (byte) ((instr >>> 21) & 0xF);
+				flags = (opcode == SUB || opcode == RSB || opcode == ADD || opcode == CMP || opcode == CMN) ? FLAGS_NZCV : FLAGS_NZ;
+			}
+		}
+
+		byte cond = (byte) (instrs[length - 1] >>> 28);
+		return cond == 0xE || flags == FLAGS_NZCV || (flags == FLAGS_NZ && Condition.onlyNZ(cond));
+	}
+
+	/**
+	 * @return The registers read by an instruction allowed in an idle loop, -1 if it isn't allowed
+	 */
+	private static int loopReads(int instr, byte handler) {
+		if ((instr & 0xF000) == 0xF000) //Rd is r15
+			return -1;
+		int rn = 1 << ((instr >>> 16) & 0xF);
+		switch(handler) {
+		case DATA_PROC_PSR_IMM:
+		case DATA_PROC_PSR_REG: {
+			byte opcode = (byte) ((instr >>> 21) & 0xF);
+			if (opcode == ADC || opcode == SBC || opcode == RSC)
+				return -1;
+			if ((instr & 0x100000) == 0 && opcode >= TST && opcode <= CMN) //PSR transfer
+				return -1;
+			int reads = (opcode == MOV || opcode == MVN) ? 0 : rn;
+			if (handler == DATA_PROC_PSR_REG) {
+				if ((instr & 0x10) == 0x10 || (instr & 0xFE0) == 0x060) //Shift by register, RRX
+					return -1;
+				reads |= 1 << (instr & 0xF);
 			}
+			return reads & 0x7FFF; //The PC is the same every pass
+		}
+		case SINGLE_DT_IMM_PRE:
+		case HALFWORD_DT_IMM_PRE:
+			if ((instr & 0x300000) != 0x100000) //Load without writeback
+				return -1;
+			return rn & 0x7FFF;
+		default:
+			return -1;
+		}
+	}
+
+	private static int loopWrites(int instr, byte handler) {
+		byte opcode = (byte) ((instr >>> 21) & 0xF);
+		if (handler != SINGLE_DT_IMM_PRE && handler != HALFWORD_DT_IMM_PRE && opcode >= TST && opcode <= CMN)
+			return 0;
+		return 1 << ((instr >>> 12) & 0xF);
+	}
+
+	private static boolean cacheable(byte handler) {
+		switch(handler) {
+		case ILLEGAL_MULTIPLY: case ILLEGAL_SWAP: case UNDEFINED_TRAP:
+		case COPROC_DT_POST: case COPROC_DT_PRE: case COPROC_DATA_OPERATION: case COPROC_REGISTER_TRANSFER:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Whether the instruction may branch. This only decides where the block stops, a branch in
+	 * the middle of a block (e.g. a multiply into r15) is still caught by execute(Block).
+	 */
+	private static boolean endsBlock(int instr, byte handler) {
+		switch(handler) {
+		case BRANCH: case BRANCH_LINK: case BRANCH_AND_EXCHANGE: case SOFTWARE_INTERRUPT:
+			return true;
+		case BLOCK_DT_POST: case BLOCK_DT_PRE:
+			return (instr & 0x108000) == 0x108000; //LDM with r15 in Rlist
+		case DATA_PROC_PSR_REG: case DATA_PROC_PSR_IMM:
+			if ((instr & 0x1900000) == 0x1000000) //PSR transfer, MSR may change the mode
+				return true;
+			return (instr & 0xF000) == 0xF000; //Rd is r15
+		default:
+			return (instr & 0xF000) == 0xF000; //Rd is r15
+		}
+	}
 
+	/**
+	 * Runs a cached block, leaving the CPU at the first instruction that wasn't executed.
+	 * Stops early if an instruction branches or invalidates the block.
+	 */
+	protected void execute(Block block) {
+		int[] instrs = block.instrs;
+		byte[] handlers = block.handlers;
+		int pc = block.start;
+		for (int i = 0; i < instrs.length; ++i) {
+			int instr = instrs[i];
+			cpu.pc = pc;
+			cpu.setReg(15, pc + 8);
+			cpu.wait.fetch32(pc + 8);
+			cpu.execute = instr;
+			if (Condition.condition((byte) (instr >>> 28), cpu.cpsr))
+				dispatch(instr, handlers[i]);
+			if (cpu.branched)
+				return;
+			pc += 4;
+			if (!block.valid) //Overwrote itself, the rest has to be fetched again
+				break;
+		}
+		cpu.pc = pc;
+	}
+
+	private void dispatch(int instr, byte handler) {
+		switch(handler) {
+		case DATA_PROC_PSR_REG: dataProcPSRReg(instr); break;
+		case DATA_PROC_PSR_IMM: dataProcPSRImm(instr); break;
+		case BRANCH_AND_EXCHANGE:
+			if ((instr & 0xFFF00) == 0xFFF00) //Bit 19-8 SET
+				branchAndExchange(instr);
+			else
+				dataProcPSRReg(instr);
+			break;
+		case MULTIPLY: multiply(instr); break;
+		case MULTIPLY_LONG: multiplyLong(instr); break;
+		case ILLEGAL_MULTIPLY: cpu.undefinedInstr("Illegal multiply varation"); break;
+		case SINGLE_DATA_SWAP: singleDataSwap(instr); break;
+		case ILLEGAL_SWAP: cpu.undefinedInstr("Illegal single data swap variation"); break;
+		case HALFWORD_DT_IMM_POST: halfwordDTImmPost(instr); break;
+		case HALFWORD_DT_REG_POST: halfwordDTRegPost(instr); break;
+		case HALFWORD_DT_IMM_PRE: halfwordDTImmPre(instr); break;
+		case HALFWORD_DT_REG_PRE: halfwordDTRegPre(instr); break;
+		case SINGLE_DT_IMM_POST: singleDataTransferImmPost(instr); break;
+		case SINGLE_DT_IMM_PRE: singleDataTransferImmPre(instr); break;
+		case SINGLE_DT_REG_POST: singleDataTransferRegPost(instr); break;
+		case SINGLE_DT_REG_PRE: singleDataTransferRegPre(instr); break;
+		case UNDEFINED_TRAP: undefinedTrap(); break;
+		case BLOCK_DT_POST: blockDataTransferPost(instr); break;
+		case BLOCK_DT_PRE: blockDataTransferPre(instr); break;
+		case BRANCH: branch(instr); break;
+		case BRANCH_LINK: branchLink(instr); break;
+		case COPROC_DT_POST: coprocDataTransferPost(instr); break;
+		case COPROC_DT_PRE: coprocDataTransferPre(instr); break;
+		case COPROC_DATA_OPERATION: coprocDataOperation(instr); break;
+		case COPROC_REGISTER_TRANSFER: coprocRegisterTransfer(instr); break;
+		case SOFTWARE_INTERRUPT: softwareInterrupt(instr); break;
 		}
 	}
 
@@ -179,7 +421,6 @@ public class ARMProcessor implements CPU.IProcessor {
 	}
 
 	private int getOp2(int shift, int rm) {
-		cpu.wait.internalCycles(1); //Clock internal cycle
 		byte type = (byte)((shift & 0x6) >>> 1); //type is bit 6-5
 		
 		if ((shift & 0x1) == 0) { //shift unsigned integer
@@ -193,6 +434,7 @@ public class ARMProcessor implements CPU.IProcessor {
 		}
 		else {
 			int rs = shift >>> 4; //rs is bit 11-8
+			cpu.wait.internalCycles(1); //Clock internal cycle, only for shift by register
 			switch(type) {
 			case 0: return lslr(rm, rs);
 			case 1: return lsrr(rm, rs);
@@ -224,7 +466,7 @@ public class ARMProcessor implements CPU.IProcessor {
 		if (imm5 > 0) //ROR
 			return (reg >>> imm5) | (reg << (32 - imm5));
 		else //RRX
-			return ((cpu.cpsr.carry) ? 0x80000000 : 0) | (reg >>> 1);
+			return ((cpu.cpsr.isCarry()) ? 0x80000000 : 0) | (reg >>> 1);
 	}
 
 	private int lslr(int rm, int rs) {
@@ -254,7 +496,6 @@ public class ARMProcessor implements CPU.IProcessor {
 	}
 
 	private int getOp2S(int shift, int rm) {
-		cpu.wait.internalCycles(1); //Clock internal cycle
 		byte type = (byte)((shift & 0x6) >>> 1); //type is bit 6-5
 		
 		if ((shift & 0x1) == 0) { //shift unsigned integer
@@ -268,6 +509,7 @@ public class ARMProcessor implements CPU.IProcessor {
 		}
 		else {
 			int rs = shift >>> 4; //rs is bit 11-8
+			cpu.wait.internalCycles(1); //Clock internal cycle, only for shift by register
 			switch(type) {
 			case 0: return lslrs(rm, rs);
 			case 1: return lsrrs(rm, rs);
@@ -283,18 +525,18 @@ public class ARMProcessor implements CPU.IProcessor {
 	private int lslis(int rm, int imm5) {
 		int reg = cpu.getReg(rm);
 		if (imm5 > 0)
-			cpu.cpsr.carry = (reg << (imm5-1) < 0);
+			cpu.cpsr.setCarry(reg << (imm5-1) < 0);
 		return reg << imm5;
 	}
 
 	private int lsris(int rm, int imm5) {
 		int reg = cpu.getReg(rm);
 		if (imm5 > 0) {
-			cpu.cpsr.carry = (((reg >>> (imm5 - 1)) & 0x1) == 0x1);
+			cpu.cpsr.setCarry(((reg >>> (imm5 - 1)) & 0x1) == 0x1);
 			return reg >>> imm5;
 		}
 		else { //LSR 0 is actually LSR #32
-			cpu.cpsr.carry = (reg < 0);
+			cpu.cpsr.setCarry(reg < 0);
 			return 0;
 		}
 	}
@@ -302,11 +544,11 @@ public class ARMProcessor implements CPU.IProcessor {
 	private int asris(int rm, int imm5) {
 		int reg = cpu.getReg(rm);
 		if (imm5 > 0) {
-			cpu.cpsr.carry = (((reg >>> (imm5 - 1)) & 0x1) == 0x1);
+			cpu.cpsr.setCarry(((reg >>> (imm5 - 1)) & 0x1) == 0x1);
 			return reg >> imm5;
 		}
 		else { //ASR 0 is actually ASR #32
-			cpu.cpsr.carry = (reg < 0);
+			cpu.cpsr.setCarry(reg < 0);
 			return reg >> 31;
 		}
 	}
@@ -314,13 +556,13 @@ public class ARMProcessor implements CPU.IProcessor {
 	private int roris(int rm, int imm5) {
 		int reg = cpu.getReg(rm);
 		if (imm5 > 0) { //ROR
-			cpu.cpsr.carry = (((reg >>> (imm5 - 1)) & 0x1) == 0x1);
+			cpu.cpsr.setCarry(((reg >>> (imm5 - 1)) & 0x1) == 0x1);
 			return (reg >>> imm5) | (reg << (32-imm5));
 		}
 		else { //RRX
-			boolean carry = cpu.cpsr.carry;
+			boolean carry = cpu.cpsr.isCarry();
 			//Carry is 0 bit
-			cpu.cpsr.carry = ((reg & 0x1) == 0x1);
+			cpu.cpsr.setCarry((reg & 0x1) == 0x1);
 			return ((carry) ? 0x80000000 : 0) | (reg >>> 1);
 		}
 	}
@@ -330,15 +572,15 @@ public class ARMProcessor implements CPU.IProcessor {
 		int shift = getRegDelayedPC(rs) & 0xFF;
 		if (shift > 0) {
 			if (shift < 32) { //Shifts <32 are fine, carry is the last bit shifted out
-				cpu.cpsr.carry = (reg << (shift-1) < 0);
+				cpu.cpsr.setCarry(reg << (shift-1) < 0);
 				return reg << shift;
 			}
 			else if (shift == 32) { //We do this manually b/c in Java, shifts are % #bits, carry is the 0 bit
-				cpu.cpsr.carry = ((reg & 0x1) == 0x1); 
+				cpu.cpsr.setCarry((reg & 0x1) == 0x1); 
 				return 0;
 			}
 			else { //Shift >32, 0's!
-				cpu.cpsr.carry = false;
+				cpu.cpsr.setCarry(false);
 				return 0;
 			}
 		}
@@ -350,15 +592,15 @@ public class ARMProcessor implements CPU.IProcessor {
 		int shift = getRegDelayedPC(rs) & 0xFF;
 		if (shift > 0) {
 			if (shift < 32) { //Shifts <32 are fine, carry is the last bit shifted out
-				cpu.cpsr.carry = (((reg >>> (shift - 1)) & 0x1) == 0x1);
+				cpu.cpsr.setCarry(((reg >>> (shift - 1)) & 0x1) == 0x1);
 				return reg >>> shift;
 			}
 			else if (shift == 32) { //We do this manually b/c in Java, shifts are % #bits, carry is sign bit
-				cpu.cpsr.carry = (reg < 0); 
+				cpu.cpsr.setCarry(reg < 0); 
 				return 0;
 			}
 			else { //Shift >32, 0's!
-				cpu.cpsr.carry = false;
+				cpu.cpsr.setCarry(false);
 				return 0;
 			}
 		}
@@ -370,11 +612,11 @@ public class ARMProcessor implements CPU.IProcessor {
 		int shift = getRegDelayedPC(rs) & 0xFF;
 		if (shift > 0) {
 			if (shift < 32) { //Shifts <32 are fine, carry is the last bit shifted out
-				cpu.cpsr.carry = (((reg >> (shift - 1)) & 0x1) == 0x1);
+				cpu.cpsr.setCarry(((reg >> (shift - 1)) & 0x1) == 0x1);
 				return reg >> shift;
 			}
 			else { //Shift >=32, carry is equal to the sign bit, value becomes either all 1's or 0's
-				cpu.cpsr.carry = (reg < 0);
+				cpu.cpsr.setCarry(reg < 0);
 				return reg >> 31;
 			}
 		}
@@ -387,12 +629,12 @@ public class ARMProcessor implements CPU.IProcessor {
 		if (rotate > 0) {
 			rotate = rotate & 0x1F; //If rotate >32, we subtract 32 until in range [0-31] -> same as & 0x1F (31)
 			if (rotate > 0) { //Carry is the last bit rotated out
-				cpu.cpsr.carry = (((reg >>> (rotate - 1)) & 0x1) == 0x1);
+				cpu.cpsr.setCarry(((reg >>> (rotate - 1)) & 0x1) == 0x1);
 				//Val is the remaining bits from the shift and the removed bits shifted to the left
 				return (reg >>> rotate) | (reg << (32-rotate));
 			}
 			else //ROR 32, carry equal to sign bit
-				cpu.cpsr.carry = (reg < 0);
+				cpu.cpsr.setCarry(reg < 0);
 		}
 		return reg; //0 shift just returns reg
 	}
@@ -458,7 +700,7 @@ public class ARMProcessor implements CPU.IProcessor {
 	private int immOpS(int val, int rotate) {
 		rotate = rotate * 2; //ROR by twice the value passed in 
 		if (rotate > 0) {
-			cpu.cpsr.carry = (((val >>> (rotate - 1)) & 0x1) == 0x1);
+			cpu.cpsr.setCarry(((val >>> (rotate - 1)) & 0x1) == 0x1);
 			val = (val >>> rotate) | (val << (32-rotate));
 		}
 		return val;
@@ -512,8 +754,7 @@ public class ARMProcessor implements CPU.IProcessor {
 
 	private void ands(int rd, int op1, int op2) {
 		int val = op1 & op2;
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		setRegSafeCPSR(rd, val);
 	}
 
@@ -523,8 +764,7 @@ public class ARMProcessor implements CPU.IProcessor {
 
 	private void eors(int rd, int op1, int op2) {
 		int val = op1 ^ op2;
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		setRegSafeCPSR(rd, val);
 	}
 
@@ -553,7 +793,7 @@ public class ARMProcessor implements CPU.IProcessor {
 	}
 
 	private void adc(int rd, int op1, int op2) {
-		setRegSafe(rd, op1 + op2 + ((cpu.cpsr.carry) ? 1 : 0));
+		setRegSafe(rd, op1 + op2 + ((cpu.cpsr.isCarry()) ? 1 : 0));
 	}
 
 	private void adcs(int rd, int op1, int op2) {
@@ -561,7 +801,7 @@ public class ARMProcessor implements CPU.IProcessor {
 	}
 
 	private void sbc(int rd, int op1, int op2) {
-		setRegSafe(rd, op1 - op2 - ((cpu.cpsr.carry) ? 0 : 1));
+		setRegSafe(rd, op1 - op2 - ((cpu.cpsr.isCarry()) ? 0 : 1));
 	}
 
 	private void sbcs(int rd, int op1, int op2) {
@@ -569,7 +809,7 @@ public class ARMProcessor implements CPU.IProcessor {
 	}
 
 	private void rsc(int rd, int op1, int op2) {
-		setRegSafe(rd, op2 - op1 - ((cpu.cpsr.carry) ? 0 : 1));
+		setRegSafe(rd, op2 - op1 - ((cpu.cpsr.isCarry()) ? 0 : 1));
 	}
 
 	private void rscs(int rd, int op1, int op2) {
@@ -578,14 +818,12 @@ public class ARMProcessor implements CPU.IProcessor {
 
 	private void tst(int rd, int op1, int op2) {
 		int val = op1 & op2;
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 	}
 
 	private void teq(int rd, int op1, int op2) {
 		int val = op1 ^ op2;
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 	}
 
 	private void cmp(int rd, int op1, int op2) {
@@ -602,8 +840,7 @@ public class ARMProcessor implements CPU.IProcessor {
 
 	private void orrs(int rd, int op1, int op2) {
 		int val = op1 | op2;
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		setRegSafeCPSR(rd, val);
 	}
 
@@ -612,8 +849,7 @@ public class ARMProcessor implements CPU.IProcessor {
 	}
 
 	private void movs(int rd, int op1, int op2) {
-		cpu.cpsr.negative = (op2 < 0);
-		cpu.cpsr.zero = (op2 == 0);
+		cpu.cpsr.setNZ(op2);
 		setRegSafeCPSR(rd, op2);
 	}
 
@@ -623,8 +859,7 @@ public class ARMProcessor implements CPU.IProcessor {
 
 	private void bics(int rd, int op1, int op2) {
 		int val = op1 & ~op2;
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		setRegSafeCPSR(rd, val);
 	}
 
@@ -634,8 +869,7 @@ public class ARMProcessor implements CPU.IProcessor {
 
 	private void mvns(int rd, int op1, int op2) {
 		op2 = ~op2;
-		cpu.cpsr.negative = (op2 < 0);
-		cpu.cpsr.zero = (op2 == 0);
+		cpu.cpsr.setNZ(op2);
 		setRegSafeCPSR(rd, op2);
 	}
 
@@ -661,9 +895,8 @@ public class ARMProcessor implements CPU.IProcessor {
 	private void muls(int rd, int rm, int rs) {
 		cpu.wait.clockMUL(cpu.getReg(rs));
 		int val = cpu.getReg(rm) * cpu.getReg(rs);
-		cpu.cpsr.carry = false;
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setCarry(false);
+		cpu.cpsr.setNZ(val);
 		setRegSafe(rd, val);
 	}
 
@@ -675,9 +908,8 @@ public class ARMProcessor implements CPU.IProcessor {
 	private void mlas(int rd, int rm, int rs, int rn) {
 		cpu.wait.clockMLA(cpu.getReg(rs));
 		int val = cpu.getReg(rm)*cpu.getReg(rs) + cpu.getReg(rn);
-		cpu.cpsr.carry = false;
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setCarry(false);
+		cpu.cpsr.setNZ(val);
 		setRegSafe(rd, val);
 	}
 
@@ -709,9 +941,8 @@ public class ARMProcessor implements CPU.IProcessor {
 	private void umulls(int rdHi, int rdLo, int rm, int rs) {
 		cpu.wait.clockUMULL(cpu.getReg(rs));
 		long result = (cpu.getReg(rm) & 0xFFFFFFFFL)*(cpu.getReg(rs) & 0xFFFFFFFFL);
-		cpu.cpsr.carry = false;
-		cpu.cpsr.negative = (result < 0);
-		cpu.cpsr.zero = (result == 0);
+		cpu.cpsr.setCarry(false);
+		cpu.cpsr.setNZ(result);
 		setRegSafe(rdHi, (int) (result >>> 32));
 		setRegSafe(rdLo, (int) result);
 	}
@@ -726,9 +957,8 @@ public class ARMProcessor implements CPU.IProcessor {
 	private void umlals(int rdHi, int rdLo, int rm, int rs) {
 		cpu.wait.clockUMLAL(cpu.getReg(rs));
 		long result = (cpu.getReg(rm) & 0xFFFFFFFFL)*(cpu.getReg(rs) & 0xFFFFFFFFL) + (((cpu.getReg(rdHi) & 0xFFFFFFFFL) << 32) | (cpu.getReg(rdLo) & 0xFFFFFFFFL));
-		cpu.cpsr.carry = false;
-		cpu.cpsr.negative = (result < 0);
-		cpu.cpsr.zero = (result == 0);
+		cpu.cpsr.setCarry(false);
+		cpu.cpsr.setNZ(result);
 		setRegSafe(rdHi, (int) (result >>> 32));
 		setRegSafe(rdLo, (int) result);
 	}
@@ -743,9 +973,8 @@ public class ARMProcessor implements CPU.IProcessor {
 	private void smulls(int rdHi, int rdLo, int rm, int rs) {
 		cpu.wait.clockSMULL(cpu.getReg(rs));
 		long result = ((long) cpu.getReg(rm))*cpu.getReg(rs);
-		cpu.cpsr.carry = false;
-		cpu.cpsr.negative = (result < 0);
-		cpu.cpsr.zero = (result == 0);
+		cpu.cpsr.setCarry(false);
+		cpu.cpsr.setNZ(result);
 		setRegSafe(rdHi, (int) (result >>> 32));
 		setRegSafe(rdLo, (int) result);
 	}
@@ -760,14 +989,17 @@ public class ARMProcessor implements CPU.IProcessor {
 	private void smlals(int rdHi, int rdLo, int rm, int rs) {
 		cpu.wait.clockSMLAL(cpu.getReg(rs));
 		long result = ((long) cpu.getReg(rm))*cpu.getReg(rs) + (((cpu.getReg(rdHi) & 0xFFFFFFFFL) << 32) | (cpu.getReg(rdLo) & 0xFFFFFFFFL));
-		cpu.cpsr.carry = false;
-		cpu.cpsr.negative = (result < 0);
-		cpu.cpsr.zero = (result == 0);
+		cpu.cpsr.setCarry(false);
+		cpu.cpsr.setNZ(result);
 		setRegSafe(rdHi, (int) (result >>> 32));
 		setRegSafe(rdLo, (int) result);
 	}
 
 	private void singleDataSwap(int instr) {
+		if ((instr & 0xF00) != 0) { //Bit 11-8 should be CLEAR
+			cpu.undefinedInstr("Illegal single data swap variation");
+			return;
+		}
 		//rn = (instr >>> 16) & 0xF
 		//rd = (instr >>> 12) & 0xF
 		//rs = instr & 0xF
@@ -872,6 +1104,10 @@ public class ARMProcessor implements CPU.IProcessor {
 	}
 
 	private void halfwordDTRegPost(int instr) {
+		if ((instr & 0xF00) != 0) { //Bit 11-8 should be CLEAR
+			cpu.undefinedInstr("Illegal (post) halfword data transfer variation");
+			return;
+		}
 		if ((instr & 0x200000) == 0x200000) { //Write back should be 0
 			cpu.undefinedInstr("Halfword data transfer POST write back bit must be CLEAR");
 			return; 
@@ -897,6 +1133,10 @@ public class ARMProcessor implements CPU.IProcessor {
 	}
 
 	private void halfwordDTRegPre(int instr) {
+		if ((instr & 0xF00) != 0) { //Bit 11-8 should be CLEAR
+			cpu.undefinedInstr("Illegal (pre) halfword data transfer variation");
+			return;
+		}
 		//rn = (instr >>> 16) & 0xF
 		//rd = (instr >>> 12) & 0xF
 		int offset = cpu.getReg(instr);
@@ -0,0 +1,61 @@
+package cpu;
+
+/**
+ * A pre-decoded basic block: the instructions from start up to (and including) the first
+ * instruction that may branch, fetched and decoded once so that running the block is
+ * just a loop over the handlers.
+ *
+ * @author David Goldman
+ */
+public class Block {
+
+	protected final boolean thumb;
+
+	/**
+	 * Address of the first instruction.
+	 */
+	protected final int start;
+
+	/**
+	 * Address of the instruction following the block.
+	 */
+	protected final int end;
+
+	/**
+	 * Target of the branch ending the block if it is known when decoding, otherwise end.
+	 */
+	protected final int target;
+
+	protected final int[] instrs;
+
+	/**
+	 * The decode table entry for each instruction.
+	 */
+	protected final byte[] handlers;
+
+	/*
+	 * Links to the blocks at target and end, filled in by BlockCache the first time they are taken
+	 */
+	protected Block taken;
+	protected Block notTaken;
+
+	/**
+	 * Set if the block is a loop that only polls memory, see CPU.step().
+	 */
+	protected boolean idle;
+
+	/**
+	 * Cleared when the block is dropped from the cache, e.g. because its code was overwritten.
+	 */
+	protected boolean valid = true;
+
+	public Block(boolean thumb, int start, int end, int target, int[] instrs, byte[] handlers) {
+		this.thumb = thumb;
+		this.start = start;
+		this.end = end;
+		this.target = target;
+		this.instrs = instrs;
+		this.handlers = handlers;
+	}
+
+}
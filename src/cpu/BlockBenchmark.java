@@ -0,0 +1,67 @@
+package cpu;
+
+/**
+ * Times a tight ARM and THUMB loop in IWRAM with the block cache on and off. The loop only touches
+ * registers, so the numbers are the cost of fetching, decoding and dispatching.
+ * <p>
+ * Usage: java cpu.BlockBenchmark [cycles]
+ *
+ * @author David Goldman
+ */
+public class BlockBenchmark {
+
+	private static final int BASE = 0x03000000;
+	private static final int RUNS = 5;
+
+	/*
+	 * loop: add r0, r0, #1; eor r1, r1, r0; add r2, r2, r1, lsl #1; subs r3, r3, #1; bne loop
+	 */
+	private static final int[] ARM_LOOP = { 0xE2800001, 0xE0211000, 0xE0822081, 0xE2533001, 0x1AFFFFFA };
+
+	/*
+	 * The same loop in THUMB: add r0, #1; eor r1, r0; lsl r4, r1, #1; add r2, r2, r4; sub r3, #1; bne loop
+	 */
+	private static final int[] THUMB_LOOP = { 0x3001, 0x4041, 0x004C, 0x1912, 0x3B01, 0xD1F9 };
+
+	private static long time(int[] loop, boolean thumb, boolean useBlocks, long cycles) {
+		CPU cpu = new CPU();
+		for (int i = 0; i < loop.length; ++i) {
+			if (thumb)
+				cpu.memory.write16(BASE + (i << 1), loop[i]);
+			else
+				cpu.memory.write32(BASE + (i << 2), loop[i]);
+		}
+		cpu.setBlockCache(useBlocks);
+		cpu.cpsr.thumb = thumb;
+		cpu.pc = BASE;
+		cpu.setReg(3, 0x7FFFFFFF); //Loop counter, never reaches 0
+		long start = System.nanoTime();
+		cpu.run(cycles);
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return The fastest of RUNS runs after a warm up, in ms
+	 */
+	private static long best(int[] loop, boolean thumb, boolean useBlocks, long cycles) {
+		time(loop, thumb, useBlocks, cycles / 5);
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; ++i)
+			best = Math.min(best, time(loop, thumb, useBlocks, cycles));
+		return best / 1000000;
+	}
+
+	private static void report(String name, int[] loop, boolean thumb, long cycles) {
+		long interpreted = best(loop, thumb, false, cycles);
+		long cached = best(loop, thumb, true, cycles);
+		System.out.println(name + ": interpreter " + interpreted + " ms, block cache " + cached + " ms (" +
+				(interpreted * 100 / Math.max(cached, 1)) + "%)");
+	}
+
+	public static void main(String[] args) {
+		long cycles = (args.length > 0) ? Long.parseLong(args[0]) : 100000000L;
+		report("ARM", ARM_LOOP, false, cycles);
+		report("THUMB", THUMB_LOOP, true, cycles);
+	}
+
+}
@@ -0,0 +1,198 @@
+package cpu;
+
+import cores.Memory;
+
+/**
+ * Direct mapped cache of pre-decoded blocks, indexed by PC. A block is only decoded
+ * once its start address has been executed HOT_THRESHOLD times, everything else keeps
+ * running in the interpreter.
+ * <p>
+ * This is a decode cache, not a recompiler. Running a block skips the fetch and the decode
+ * table lookup, but every instruction still goes through the dispatch switch of its processor.
+ * <p>
+ * Blocks in EWRAM and IWRAM can be overwritten, so every 256 byte page of RAM holding a
+ * block is flagged in a bitmap. Stores only have to test that bit, and a store to a flagged
+ * page invalidates just the blocks containing the written bytes.
+ *
+ * @author David Goldman
+ */
+public class BlockCache {
+
+	private static final int SIZE = 0x1000; //Must be a power of two
+	private static final int HOT_THRESHOLD = 16;
+
+	/**
+	 * Upper bound on the size of a block in bytes, so that the blocks containing an address
+	 * all start in the MAX_BLOCK_BYTES before it.
+	 */
+	protected static final int MAX_BLOCK_BYTES = 0x100;
+
+	private static final int CODE_PAGE_SHIFT = 8; //256 byte pages
+
+	private final ARMProcessor arm;
+	private final THUMBProcessor thumb;
+
+	private final Block[] blocks = new Block[SIZE];
+
+	/*
+	 * Execution count for the last address seen in each slot, the tag is (pc | 1) for THUMB
+	 */
+	private final int[] heatTags = new int[SIZE];
+	private final byte[] heat = new byte[SIZE];
+
+	/**
+	 * One bit per page of RAM (EWRAM followed by IWRAM, see ramOffset()), set if a block was decoded from it.
+	 */
+	private final int[] codePages = new int[(Memory.EWRAM_SIZE + Memory.IWRAM_SIZE) >>> (CODE_PAGE_SHIFT + 5)];
+
+	public BlockCache(ARMProcessor arm, THUMBProcessor thumb) {
+		this.arm = arm;
+		this.thumb = thumb;
+	}
+
+	/*
+	 * The slot only depends on bit 12-1 of the PC, which are the same in every mirror of EWRAM and IWRAM
+	 */
+	private static int slot(int pc) {
+		return (pc >>> 1) & (SIZE - 1);
+	}
+
+	/**
+	 * @return The offset of address in EWRAM + IWRAM (unmirrored), or -1 if it isn't in either
+	 */
+	private static int ramOffset(int address) {
+		switch(address >>> 24) {
+		case Memory.EWRAM: return address & (Memory.EWRAM_SIZE - 1);
+		case Memory.IWRAM: return Memory.EWRAM_SIZE + (address & (Memory.IWRAM_SIZE - 1));
+		default: return -1;
+		}
+	}
+
+	/**
+	 * @return The block starting at pc, or null if pc isn't hot yet or can't be cached
+	 */
+	protected Block lookup(int pc, boolean thumb) {
+		int slot = slot(pc);
+		Block block = blocks[slot];
+		if (block != null && block.start == pc && block.thumb == thumb)
+			return block;
+
+		int tag = (thumb) ? pc | 0x1 : pc;
+		if (heatTags[slot] != tag) {
+			heatTags[slot] = tag;
+			heat[slot] = 1;
+			return null;
+		}
+		if (++heat[slot] < HOT_THRESHOLD)
+			return null;
+
+		heat[slot] = 0;
+		block = (thumb) ? this.thumb.decodeBlock(pc) : arm.decodeBlock(pc);
+		if (block != null) {
+			if (blocks[slot] != null) //Evicted blocks must not stay reachable through links
+				blocks[slot].valid = false;
+			blocks[slot] = block;
+			markCode(block);
+		}
+		return block;
+	}
+
+	private void markCode(Block block) {
+		if (ramOffset(block.start) == -1)
+			return;
+		for (int address = block.start; address - block.end < 0; address += 1 << CODE_PAGE_SHIFT)
+			setCodePage(ramOffset(address));
+		setCodePage(ramOffset(block.end - 1));
+	}
+
+	private void setCodePage(int offset) {
+		int page = offset >>> CODE_PAGE_SHIFT;
+		codePages[page >>> 5] |= 1 << (page & 0x1F);
+	}
+
+	/**
+	 * Whether address is in a page of RAM that blocks have been decoded from. Called on every store.
+	 */
+	protected boolean isCode(int address) {
+		int offset = ramOffset(address);
+		if (offset == -1)
+			return false;
+		int page = offset >>> CODE_PAGE_SHIFT;
+		return (codePages[page >>> 5] & (1 << (page & 0x1F))) != 0;
+	}
+
+	/**
+	 * Invalidates every block containing a byte in [address, address + length). The page bits
+	 * are left set, they only make stores to the page check here.
+	 */
+	protected void invalidate(int address, int length) {
+		int first = ramOffset(address);
+		if (first == -1)
+			return;
+		int last = first + length - 1;
+		for (int start = address - MAX_BLOCK_BYTES + 2; start - (address + length) < 0; start += 2) {
+			int slot = slot(start);
+			Block block = blocks[slot];
+			if (block == null)
+				continue;
+			int offset = ramOffset(block.start);
+			if (offset != -1 && offset <= last && offset + (block.end - block.start) > first) {
+				block.valid = false;
+				blocks[slot] = null;
+			}
+		}
+	}
+
+	/**
+	 * Invalidates the blocks in [address, address + length) after a write that didn't go through
+	 * the CPU (e.g. a BIOS call), only the flagged pages are checked.
+	 */
+	protected void written(int address, int length) {
+		if (ramOffset(address) == -1)
+			return;
+		int end = address + length;
+		for (int page = address & ~((1 << CODE_PAGE_SHIFT) - 1); page - end < 0; page += 1 << CODE_PAGE_SHIFT) {
+			if (isCode(page)) {
+				int first = Math.max(page, address);
+				invalidate(first, Math.min(page + (1 << CODE_PAGE_SHIFT), end) - first);
+			}
+		}
+	}
+
+	/**
+	 * Follows the link from a block that just finished to the block at pc, linking it the first time.
+	 *
+	 * @return The next block, or null if pc isn't the branch target or the end of block (or has no block yet)
+	 */
+	protected Block successor(Block block, int pc, boolean thumb) {
+		if (thumb != block.thumb)
+			return null;
+		if (pc == block.target) {
+			if (block.taken == null || !block.taken.valid)
+				block.taken = lookup(pc, thumb);
+			return block.taken;
+		}
+		if (pc == block.end) {
+			if (block.notTaken == null || !block.notTaken.valid)
+				block.notTaken = lookup(pc, thumb);
+			return block.notTaken;
+		}
+		return null;
+	}
+
+	/**
+	 * Drop every block, e.g. when new code is loaded.
+	 */
+	protected void clear() {
+		for (int i = 0; i < SIZE; ++i) {
+			if (blocks[i] != null)
+				blocks[i].valid = false;
+			blocks[i] = null;
+			heatTags[i] = 0;
+			heat[i] = 0;
+		}
+		for (int i = 0; i < codePages.length; ++i)
+			codePages[i] = 0;
+	}
+
+}
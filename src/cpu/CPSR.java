@@ -90,10 +90,38 @@ public class CPSR {
 		R8_TO_R12_MAP, R8_TO_R12_MAP, R8_TO_R12_MAP, R8_TO_R12_MAP, R8_TO_R12_MAP, R13_R14_MAP, R13_R14_MAP, ZERO_MAP
 	};
 
-	protected boolean negative; //Negative/Less Than - Bit 31
-	protected boolean zero; //Zero - Bit 30
-	protected boolean carry; //Carry/Borrow/Extend - Bit 29
-	protected boolean overflow; //Overflow - Bit 28
+	/*
+	 * Kinds of pending flag evaluations. The C and V flags of an add/subtract are only
+	 * computed from the recorded operands once something reads them (see evaluateFlags()).
+	 */
+	private static final byte EVALUATED = 0;
+	private static final byte LAZY_ADD = 1;
+	private static final byte LAZY_SUB = 2;
+	private static final byte LAZY_ADD_CARRY = 3;
+	private static final byte LAZY_SUB_CARRY = 4;
+
+	/*
+	 * Bits of the packed condition code flags.
+	 */
+	private static final int N = 0x8; //Negative/Less Than - Bit 31
+	private static final int Z = 0x4; //Zero - Bit 30
+	private static final int C = 0x2; //Carry/Borrow/Extend - Bit 29
+	private static final int V = 0x1; //Overflow - Bit 28
+
+	/**
+	 * The condition code flags packed as NZCV (Bit 31-28 shifted down to Bit 3-0), so that
+	 * {@link Condition} can evaluate a condition with a single table lookup.
+	 * The C and V bits are only valid if lazyOp is EVALUATED.
+	 */
+	private int nzcv;
+
+	//Last add/subtract whose C and V flags have not been evaluated yet
+	private byte lazyOp;
+	private int lazyOp1, lazyOp2, lazyResult;
+	private boolean lazyCarryIn;
+
+	//If false C and V are evaluated right away, as before lazy evaluation (for comparison)
+	private boolean lazyFlags = true;
 
 	//Bit 27-8 are RESERVED
 
@@ -103,11 +131,23 @@ public class CPSR {
 
 	protected byte mode; //5 mode bits - Bit 4-0
 
-	public CPSR() {
+	private final CPU cpu;
+
+	public CPSR(CPU cpu) {
+		this.cpu = cpu;
 		//TODO Initialize this correctly
 		mode = SUPERVISOR;
 	}
 
+	/**
+	 * @param reg Register MINUS 8
+	 * @param mode Processor mode
+	 * @return The bank index of (reg + 8) in the given mode
+	 */
+	public static int mapHighRegister(int reg, byte mode) {
+		return HIGH_REG_MAP[reg & 0x7][mode & 0xF];
+	}
+
 	public int mapHighRegister(int reg) {
 		return HIGH_REG_MAP[reg & 0x7][mode & 0xF];
 	}
@@ -116,49 +156,60 @@ public class CPSR {
 		return R13_R14_MAP[mode & 0xF] - 1;
 	}
 	
+	/**
+	 * Changes the processor mode, swapping the banked registers if needed.
+	 */
+	protected void setMode(byte mode) {
+		byte oldMode = this.mode;
+		this.mode = mode;
+		if (oldMode != mode)
+			cpu.switchMode(oldMode, mode);
+	}
+
 	 public void load(int cpsr) {
-         negative = (cpsr & 0x80000000) == 0x80000000;
-         zero = (cpsr & 0x40000000) == 0x40000000;
-         carry = (cpsr & 0x20000000) == 0x20000000;
-         overflow = (cpsr & 0x10000000) == 0x10000000;
+         lazyOp = EVALUATED;
+         nzcv = cpsr >>> 28;
          
          irqDisable = (cpsr & 0x80) == 0x80;
          fiqDisable = (cpsr & 0x40) == 0x40;
          thumb = (cpsr & 0x20) == 0x20;
-         mode = (byte) (cpsr & 0x1F);
+         setMode((byte) (cpsr & 0x1F));
  }
 
+	/**
+	 * Load from a save state: the registers of the mode are already in place, so unlike
+	 * {@link #load(int)} the banks aren't swapped.
+	 */
+	protected void restore(int cpsr) {
+		lazyOp = EVALUATED;
+		nzcv = cpsr >>> 28;
+		irqDisable = (cpsr & 0x80) == 0x80;
+		fiqDisable = (cpsr & 0x40) == 0x40;
+		thumb = (cpsr & 0x20) == 0x20;
+		mode = (byte) (cpsr & 0x1F);
+	}
+
 	public void loadRestricted(int cpsr) {
-		negative = (cpsr & 0x80000000) == 0x80000000;
-		zero = (cpsr & 0x40000000) == 0x40000000;
-		carry = (cpsr & 0x20000000) == 0x20000000;
-		overflow = (cpsr & 0x10000000) == 0x10000000;
+		lazyOp = EVALUATED;
+		nzcv = cpsr >>> 28;
 
 		if (mode != USER) {
 			irqDisable = (cpsr & 0x80) == 0x80;
 			fiqDisable = (cpsr & 0x40) == 0x40;
 			//THUMB bit is only set from Branch X
-			mode = (byte) (cpsr & 0x1F);
+			setMode((byte) (cpsr & 0x1F));
 		}
 	}
 	
 	public void loadFlagBits(int cpsr) {
-		negative = (cpsr & 0x80000000) == 0x80000000;
-		zero = (cpsr & 0x40000000) == 0x40000000;
-		carry = (cpsr & 0x20000000) == 0x20000000;
-		overflow = (cpsr & 0x10000000) == 0x10000000;
+		lazyOp = EVALUATED;
+		nzcv = cpsr >>> 28;
 	}
 
 	public int save() {
-		int result = 0;
-		if (negative)
-			result |= 0x80000000;
-		if (zero)
-			result |= 0x40000000;
-		if (carry)
-			result |= 0x20000000;
-		if (overflow)
-			result |= 0x10000000;
+		if (lazyOp != EVALUATED)
+			evaluateFlags();
+		int result = nzcv << 28;
 
 		if (irqDisable)
 			result |= 0x80;
@@ -171,14 +222,14 @@ public class CPSR {
 	}
 	
 	public String toString() {
-		String s = ByteUtils.hexi(save()) + ' ';
-		if (negative)
+		String s = ByteUtils.hexi(save()) + ' '; //save() evaluates any pending flags
+		if ((nzcv & N) == N)
 			s += 'N';
-		if (zero)
+		if ((nzcv & Z) == Z)
 			s += 'Z';
-		if (carry)
+		if ((nzcv & C) == C)
 			s += 'C';
-		if (overflow)
+		if ((nzcv & V) == V)
 			s += 'V';
 		s += ' ';
 		
@@ -193,48 +244,172 @@ public class CPSR {
 		return s;
 	}
 	
+	/**
+	 * @return The condition code flags packed as NZCV (Bit 3-0)
+	 */
+	protected int nzcv() {
+		if (lazyOp != EVALUATED)
+			evaluateFlags();
+		return nzcv;
+	}
+
+	/**
+	 * @return N and Z packed like {@link #nzcv()} with C and V clear, without evaluating pending flags
+	 */
+	protected int nz() {
+		return nzcv & (N | Z);
+	}
+
+	protected boolean isNegative() {
+		return (nzcv & N) == N;
+	}
+
+	protected boolean isZero() {
+		return (nzcv & Z) == Z;
+	}
+
+	protected boolean isCarry() {
+		if (lazyOp != EVALUATED)
+			evaluateFlags();
+		return (nzcv & C) == C;
+	}
+
+	protected boolean isOverflow() {
+		if (lazyOp != EVALUATED)
+			evaluateFlags();
+		return (nzcv & V) == V;
+	}
+
+	/**
+	 * Sets N and Z from the given result, leaving C and V alone.
+	 */
+	protected void setNZ(int result) {
+		nzcv = (nzcv & (C | V)) | ((result >>> 28) & N) | ((result == 0) ? Z : 0);
+	}
+
+	/**
+	 * Sets N and Z from the given 64 bit result, leaving C and V alone.
+	 */
+	protected void setNZ(long result) {
+		nzcv = (nzcv & (C | V)) | ((int) (result >>> 60) & N) | ((result == 0) ? Z : 0);
+	}
+
+	protected void setCarry(boolean carry) {
+		if (lazyOp != EVALUATED) //Keep the pending V flag
+			evaluateFlags();
+		nzcv = (carry) ? nzcv | C : nzcv & ~C;
+	}
+
+	protected void setOverflow(boolean overflow) {
+		if (lazyOp != EVALUATED) //Keep the pending C flag
+			evaluateFlags();
+		nzcv = (overflow) ? nzcv | V : nzcv & ~V;
+	}
+
+	/**
+	 * Computes the C and V flags of the last recorded add/subtract.
+	 */
+	private void evaluateFlags() {
+		int op1 = lazyOp1, op2 = lazyOp2, result = lazyResult;
+		boolean carry, overflow;
+		switch(lazyOp) {
+		case LAZY_ADD:
+			//Carry if unsigned value has Bit 32 SET
+			carry = ((op1 & 0xffffffffL) + (op2 & 0xffffffffL) > 0xffffffffL);
+			//Overflow if two positives result in a negative or two negatives result in a positive
+			overflow = (op1 >= 0 && op2 >= 0 && result < 0) || (op1 < 0 && op2 < 0 && result >= 0);
+			break;
+		case LAZY_SUB:
+			//Odd, but must be true because a CMP calls this and CS (Carry SET) is unsigned higher or same o.0
+			carry = ((op1 & 0xffffffffL) >= (op2 & 0xffffffffL));
+			//Overflow if two positives result in a negative or two negatives result in a positive
+			overflow = (op1 >= 0 && op2 <= 0 && result < 0) || (op1 < 0 && op2 > 0 && result >= 0);
+			break;
+		case LAZY_ADD_CARRY:
+			//Carry if unsigned value has Bit 32 SET
+			carry = ((op1 & 0xffffffffL) + (op2 & 0xffffffffL) + ((lazyCarryIn) ? 1 : 0) > 0xffffffffL);
+			//Overflow if two positives result in a negative or two negatives result in a positive
+			overflow = (op1 >= 0 && op2 >= 0 && result < 0) || (op1 < 0 && op2 < 0 && result >= 0);
+			break;
+		case LAZY_SUB_CARRY:
+			//Unsigned higher or same including carry
+			carry = ((op1 & 0xffffffffL) - (op2 & 0xffffffffL) - ((lazyCarryIn) ? 0 : 1) >= 0);
+			//Overflow if the operands have different signs and the result doesn't have the sign of op1
+			//(the borrow can overflow a subtraction of 0, e.g. 0x80000000 - 0 - 1)
+			overflow = ((op1 ^ op2) & (op1 ^ result)) < 0;
+			break;
+		default:
+			return;
+		}
+		nzcv = (nzcv & (N | Z)) | ((carry) ? C : 0) | ((overflow) ? V : 0);
+		lazyOp = EVALUATED;
+	}
+
+	/**
+	 * Turns lazy evaluation of the C and V flags on or off. Off, every add/subtract computes them
+	 * right away, which is only useful to compare against.
+	 */
+	protected void setLazyFlags(boolean enabled) {
+		if (lazyOp != EVALUATED)
+			evaluateFlags();
+		lazyFlags = enabled;
+	}
+
+	/*
+	 * The arithmetic flag setters below set N and Z immediately (they're cheap), but only
+	 * record the operands for C and V, which are rarely read before being overwritten.
+	 */
+
 	protected int setAddFlags(int op1, int op2) {
 		int result = op1 + op2;
-		//Carry if unsigned value has Bit 32 SET
-		carry = ((op1 & 0xffffffffL) + (op2 & 0xffffffffL) > 0xffffffffL);
-		//Overflow if two positives result in a negative or two negatives result in a positive
-		overflow = (op1 >= 0 && op2 >= 0 && result < 0) || (op1 < 0 && op2 < 0 && result >= 0);
-		negative = (result < 0);
-		zero = (result == 0);
+		setNZ(result);
+		lazyOp = LAZY_ADD;
+		lazyOp1 = op1;
+		lazyOp2 = op2;
+		lazyResult = result;
+		if (!lazyFlags)
+			evaluateFlags();
 		return result;
 	}
 
 	protected int setSubFlags(int op1, int op2) {
 		int result = op1 - op2;
-		//Odd, but must be true because a CMP calls this and CS (Carry SET) is unsigned higher or same o.0
-		carry = ((op1 & 0xffffffffL) >= (op2 & 0xffffffffL));
-		//Overflow if two positives result in a negative or two negatives result in a positive
-		overflow = (op1 >= 0 && op2 <= 0 && result < 0) || (op1 < 0 && op2 > 0 && result >= 0);
-		negative = (result < 0);
-		zero = (result == 0);
+		setNZ(result);
+		lazyOp = LAZY_SUB;
+		lazyOp1 = op1;
+		lazyOp2 = op2;
+		lazyResult = result;
+		if (!lazyFlags)
+			evaluateFlags();
 		return result;
 	}
 
 	protected int setAddCarryFlags(int op1, int op2) {
-		int result = op1 + op2 + ((carry) ? 1 : 0);
-		//Carry if unsigned value has Bit 32 SET
-		carry = ((op1 & 0xffffffffL) + (op2 & 0xffffffffL) + ((carry) ? 1 : 0) > 0xffffffffL);
-		//Overflow if two positives result in a negative or two negatives result in a positive
-		overflow = (op1 >= 0 && op2 >= 0 && result < 0) || (op1 < 0 && op2 < 0 && result >= 0);
-		negative = (result < 0);
-		zero = (result == 0);
+		boolean carryIn = isCarry();
+		int result = op1 + op2 + ((carryIn) ? 1 : 0);
+		setNZ(result);
+		lazyOp = LAZY_ADD_CARRY;
+		lazyOp1 = op1;
+		lazyOp2 = op2;
+		lazyResult = result;
+		lazyCarryIn = carryIn;
+		if (!lazyFlags)
+			evaluateFlags();
 		return result;
 	}
 
 	protected int setSubCarryFlags(int op1, int op2) {
+		boolean carryIn = isCarry();
 		//SBC Rd, Rs (Rd = Rd - Rs - NOT C-bit)
-		int result = op1 - op2 - ((carry) ? 0 : 1);
-		//Unsigned higher or same including carry
-		carry = ((op1 & 0xffffffffL) - (op2 & 0xffffffffL) - ((carry) ? 0 : 1) >= 0);
-		//Overflow if two positives result in a negative or two negatives result in a positive
-		overflow = (op1 >= 0 && op2 <= 0 && result < 0) || (op1 < 0 && op2 > 0 && result >= 0);
-		negative = (result < 0);
-		zero = (result == 0);
+		int result = op1 - op2 - ((carryIn) ? 0 : 1);
+		setNZ(result);
+		lazyOp = LAZY_SUB_CARRY;
+		lazyOp1 = op1;
+		lazyOp2 = op2;
+		lazyResult = result;
+		lazyCarryIn = carryIn;
+		if (!lazyFlags)
+			evaluateFlags();
 		return result;
 	}
 }
@@ -1,6 +1,14 @@
 package cpu;
 
+import java.nio.ByteBuffer;
+
+import rom.CartridgeROM;
 import utils.ByteUtils;
+import cores.DirectSound;
+import cores.Interrupts;
+import cores.Memory;
+import cores.Scheduler;
+import cores.Timers;
 import cores.Waitstate;
 
 public class CPU {
@@ -23,16 +31,17 @@ public class CPU {
 	 * Byte - 8 bit data
 	 * Halfword - 16 bit data
 	 * Word - 32 bit data
+	 * 
+	 * These are the registers visible in the current mode. Banked registers are
+	 * swapped in and out of here by {@link #switchMode(byte, byte)}.
+	 */
+	private final int[] regs = new int[16];
+
+	/**
+	 * Storage for the banked copies of r8-r14, indexed by [reg - 8][bank] (see {@link CPSR#mapHighRegister(int, byte)}).
+	 * The entry for the bank of the current mode is stale, its value lives in regs.
 	 */
-	private final int[][] regs =  {
-			{ 0 }, //r0
-			{ 0 }, //r1
-			{ 0 }, //r2
-			{ 0 }, //r3
-			{ 0 }, //r4
-			{ 0 }, //r5
-			{ 0 }, //r6
-			{ 0 }, //r7
+	private final int[][] banks =  {
 			{ 0, 0 }, //r8, r8_fiq
 			{ 0, 0 }, //r9, r9_fiq
 			{ 0, 0 }, //r10, r10_fiq
@@ -40,7 +49,6 @@ public class CPU {
 			{ 0, 0 }, //r12, r12_fiq
 			{ 0, 0, 0, 0, 0, 0 }, //r13 (SP) - STACK PNTR, r13_fiq, r13_irq, r13_svc, r13_abt, r13_und
 			{ 0, 0, 0, 0, 0, 0 }, //r14 (LR) -   LINK REG, r14_fiq, r14_irq, r14_svc, r14_abt, r14_und
-			{ 0 } //r15 (PC) - PROGRAM COUNTER
 	};
 
 	private final int[] spsr = { 0, 0, 0, 0, 0 }; // SPSR (Saved Program Status Register - PRIVELEGED ONLY): SPSR_fiq, SPSR_irq, SPSR_svc, SPSR_abt, SPSR_und
@@ -50,11 +58,25 @@ public class CPU {
 	private final SWIHandler swi;
 	protected final CPSR cpsr; //CPSR (CONDITION CODE FLAGS AND CURRENT MODE BITS)
 	protected final Waitstate wait;
+	protected final Memory memory;
+	protected final Scheduler scheduler;
+	protected final Interrupts interrupts;
+	protected final DirectSound sound;
+	protected final Timers timers;
 	
 	/**
-	 * The actual PC.
+	 * The actual PC, the address of the instruction that is executing. r15 is ahead of it by
+	 * two instructions (the pipeline).
+	 */
+	protected int pc;
+
+	/**
+	 * Set when the executing instruction wrote to the PC.
 	 */
-	private int pc;
+	protected boolean branched;
+
+	private final BlockCache blocks;
+	private boolean useBlocks = true;
 	
 	/**
 	 * The instruction (ARM or THUMB) that is/was executing. 
@@ -65,8 +87,123 @@ public class CPU {
 		arm = new ARMProcessor(this);
 		thumb = new THUMBProcessor(this);
 		swi = new SWIHandler(this);
-		cpsr = new CPSR();
+		blocks = new BlockCache(arm, thumb);
+		cpsr = new CPSR(this);
 		wait = new Waitstate();
+		memory = new Memory();
+		memory.registerIO(Waitstate.WAITCNT, Waitstate.WAITCNT, wait);
+		memory.registerIO(Memory.MEMORY_CONTROL, Memory.MEMORY_CONTROL + 2, wait);
+		scheduler = new Scheduler(wait);
+		interrupts = new Interrupts(wait);
+		memory.registerIO(Interrupts.IE, Interrupts.IF, interrupts);
+		memory.registerIO(Interrupts.IME, Interrupts.IME, interrupts);
+		memory.registerIO(Interrupts.POSTFLG, Interrupts.POSTFLG, interrupts);
+		sound = new DirectSound();
+		memory.registerIO(DirectSound.SOUNDCNT_H, DirectSound.SOUNDCNT_H, sound);
+		memory.registerIO(DirectSound.FIFO_A, DirectSound.FIFO_B + 2, sound);
+		timers = new Timers(scheduler, interrupts, sound);
+		memory.registerIO(Timers.TM0CNT_L, Timers.TM3CNT_H, timers);
+	}
+
+	public void loadROM(CartridgeROM rom) {
+		memory.loadROM(rom.rom);
+		blocks.clear();
+	}
+
+	public void loadBIOS(byte[] bios) {
+		memory.loadBIOS(bios);
+		blocks.clear();
+	}
+
+	/**
+	 * Makes the ArcTan2 BIOS call look its results up in a table instead of evaluating the
+	 * polynomial, the results are the same.
+	 */
+	public void setArcTanTable(boolean enabled) {
+		swi.setArcTanTable(enabled);
+	}
+
+	/**
+	 * Turns the block cache on or off. With it off every instruction goes through the
+	 * interpreter, which is only useful to compare the two (see BlockBenchmark).
+	 */
+	public void setBlockCache(boolean enabled) {
+		useBlocks = enabled;
+		blocks.clear();
+	}
+
+	/**
+	 * Runs until the cycle counter reaches cycles. Execution only stops for scheduled events,
+	 * nothing is polled between instructions. While the CPU is halted time skips from event to
+	 * event, as only an event can request the interrupt that ends the halt.
+	 */
+	public void run(long cycles) {
+		runUntil = cycles;
+		while (wait.getCycles() < cycles) {
+			//An instruction can schedule an earlier event (e.g. by starting a timer), so check every step
+			while (wait.getCycles() < Math.min(cycles, scheduler.next())) {
+				if (interrupts.isHalted()) {
+					wait.skipTo(Math.min(cycles, scheduler.next()));
+					break;
+				}
+				step();
+			}
+			scheduler.run();
+		}
+		runUntil = 0;
+	}
+
+	/**
+	 * The end of the current run(), idle loops are skipped at most up to here.
+	 */
+	private long runUntil;
+
+	/**
+	 * Maximum number of linked blocks run by one call to step().
+	 */
+	private static final int MAX_CHAIN = 16;
+
+	/**
+	 * Executes the next instruction or, if the code at the PC is in the block cache, the block
+	 * starting there and the blocks linked after it (up to the next scheduled event). Time spent
+	 * in an idle loop is skipped up to the next event.
+	 */
+	public void step() {
+		Block block = (useBlocks) ? blocks.lookup(pc, cpsr.thumb) : null;
+		if (block == null) {
+			branched = false;
+			if (cpsr.thumb) {
+				regs[15] = pc + 4;
+				thumb.execute(pc);
+				if (!branched)
+					pc += 2;
+			}
+			else {
+				regs[15] = pc + 8;
+				arm.execute(pc);
+				if (!branched)
+					pc += 4;
+			}
+			return;
+		}
+		for (int chain = 1; ; ++chain) {
+			branched = false;
+			if (block.thumb)
+				thumb.execute(block);
+			else
+				arm.execute(block);
+			if (block.idle && pc == block.start && !timers.pollCounterRead()) { //Polling, nothing changes until the next event
+				wait.skipTo(Math.min(scheduler.next(), runUntil));
+				break;
+			}
+			if (chain == MAX_CHAIN || wait.getCycles() >= scheduler.next()) //The block may have scheduled an earlier event
+				break;
+			if (interrupts.isHalted())
+				break;
+			block = blocks.successor(block, pc, cpsr.thumb);
+			if (block == null)
+				break;
+		}
 	}
 
 	/**
@@ -104,6 +241,60 @@ public class CPU {
 			spsr[index] = (spsr[index] & 0x0FFFFFFF) | (val & 0xF0000000);
 	}
 
+	/**
+	 * Writes the registers and the state of the components for a save state, see {@link SaveState}.
+	 */
+	protected void save(ByteBuffer state) {
+		for (int reg : regs)
+			state.putInt(reg);
+		for (int[] bank : banks)
+			for (int reg : bank)
+				state.putInt(reg);
+		for (int reg : spsr)
+			state.putInt(reg);
+		state.putInt(cpsr.save()).putInt(pc).putInt(execute);
+		wait.save(state);
+		scheduler.save(state);
+		interrupts.save(state);
+		sound.save(state);
+		timers.save(state);
+	}
+
+	protected void load(ByteBuffer state) {
+		for (int reg = 0; reg < regs.length; ++reg)
+			regs[reg] = state.getInt();
+		for (int[] bank : banks)
+			for (int i = 0; i < bank.length; ++i)
+				bank[i] = state.getInt();
+		for (int i = 0; i < spsr.length; ++i)
+			spsr[i] = state.getInt();
+		cpsr.restore(state.getInt());
+		pc = state.getInt();
+		execute = state.getInt();
+		branched = false;
+		wait.load(state);
+		scheduler.load(state);
+		interrupts.load(state);
+		sound.load(state);
+		timers.load(state);
+		blocks.clear(); //Memory was replaced under the cached blocks
+	}
+
+	/**
+	 * Called by the CPSR whenever the mode changes. Saves the banked registers of the old
+	 * mode and loads the ones of the new mode.
+	 */
+	protected void switchMode(byte oldMode, byte newMode) {
+		for (int reg = 0; reg <= 6; ++reg) {
+			int oldBank = CPSR.mapHighRegister(reg, oldMode);
+			int newBank = CPSR.mapHighRegister(reg, newMode);
+			if (oldBank != newBank) {
+				banks[reg][oldBank] = regs[reg + 0x8];
+				regs[reg + 0x8] = banks[reg][newBank];
+			}
+		}
+	}
+
 	/**
 	 * Low registers cannot be banked, so no mode checking is done.
 	 * 
@@ -111,25 +302,25 @@ public class CPU {
 	 * @return The value in (reg & 0x7)
 	 */
 	protected int getLowReg(int reg) {
-		return regs[reg & 0x7][0];
+		return regs[reg & 0x7];
 	}
 
 	protected void setLowReg(int reg, int value) {
-		regs[reg & 0x7][0] = value;
+		regs[reg & 0x7] = value;
 	}
 
 	/**
-	 * Read from a high register, mode checking done because of banking.
+	 * Read from a high register. The current bank is always in place.
 	 * 
 	 * @param reg Register MINUS 8, thus to access register 8, pass in 0
 	 * @return The value in ((reg  & 0x7) + 8) (bank)
 	 */
 	protected int getHighReg(int reg) {
-		return regs[(reg & 0x7) + 0x8][cpsr.mapHighRegister(reg)];
+		return regs[(reg & 0x7) + 0x8];
 	}
 
 	protected void setHighReg(int reg, int value) {
-		regs[(reg & 0x7) + 0x8][cpsr.mapHighRegister(reg)] = value;
+		regs[(reg & 0x7) + 0x8] = value;
 	}
 
 	/**
@@ -139,85 +330,140 @@ public class CPU {
 	 * @return The value in (reg & 0xF) (bank)
 	 */
 	protected int getReg(int reg) {
-		reg = reg & 0xF;
-		return (reg <= 0x7) ? getLowReg(reg) : getHighReg(reg - 0x8);
+		return regs[reg & 0xF];
 	}
 
 	protected void setReg(int reg, int value) {
-		reg = reg & 0xF;
-		if (reg <= 0x7)
-			setLowReg(reg, value);
-		else
-			setHighReg(reg - 0x8, value);
+		regs[reg & 0xF] = value;
 	}
 
 	protected int getUserReg(int reg) {
-		return regs[reg & 0xF][0];
+		reg = reg & 0xF;
+		//Only r8-r14 are banked, and the USER bank is only swapped out if the current mode has its own
+		if (reg >= 0x8 && reg != 0xF && cpsr.mapHighRegister(reg - 0x8) != 0)
+			return banks[reg - 0x8][0];
+		return regs[reg];
 	}
 
 	protected void setUserReg(int reg, int value) {
-		regs[reg & 0xF][0] = value;
+		reg = reg & 0xF;
+		if (reg >= 0x8 && reg != 0xF && cpsr.mapHighRegister(reg - 0x8) != 0)
+			banks[reg - 0x8][0] = value;
+		else
+			regs[reg] = value;
 	}
 
 	protected int getPC() {
-		return regs[15][0];
+		return regs[15];
 	}
 
 	/**
 	 * @return The link register for the current mode.
 	 */
 	protected int getLR() {
-		return regs[14][cpsr.mapHighRegister(6)];
+		return regs[14];
 	}
 
 	protected void setLR(int val) {
-		regs[14][cpsr.mapHighRegister(6)] = val;
+		regs[14] = val;
 	}
 
 	/**
 	 * @return The stack pointer for the current mode.
 	 */
 	protected int getSP() {
-		return regs[13][cpsr.mapHighRegister(5)];
+		return regs[13];
 	}
 
 	protected void setSP(int val) {
-		regs[13][cpsr.mapHighRegister(5)] = val;
+		regs[13] = val;
 	}
 
+	/**
+	 * Jump to address (in the instruction set of the CPSR) and clock refilling the pipeline.
+	 */
 	protected void branch(int address) {
-		//TODO Update the PC
+		pc = address;
+		branched = true;
+		if (cpsr.thumb) {
+			wait.fetch16(address);
+			wait.fetch16(address + 2);
+		}
+		else {
+			wait.fetch32(address);
+			wait.fetch32(address + 4);
+		}
 	}
 
 	protected int read32(int address) {
-		//TODO
-		return 0;
+		wait.access32(address);
+		return memory.read32(address);
 	}
 
 	protected void write32(int address, int val) {
-		//TODO
+		wait.access32(address);
+		memory.write32(address, val);
+		if (blocks.isCode(address))
+			blocks.invalidate(address & 0xFFFFFFFC, 4);
+		else if ((address >>> 24) == Memory.IO)
+			ioWritten();
 	}
 
 	protected int read16(int address) {
-		//TODO 
-		return 0;
+		wait.access16(address);
+		return memory.read16(address);
 	}
 
 	protected void write16(int address, int val) {
-		//TODO
+		wait.access16(address);
+		memory.write16(address, val);
+		if (blocks.isCode(address))
+			blocks.invalidate(address & 0xFFFFFFFE, 2);
+		else if ((address >>> 24) == Memory.IO)
+			ioWritten();
 	}
 
 	protected int read8(int address) {
-		//TODO
-		return 0;
+		wait.access16(address);
+		return memory.read8(address);
 	}
 
 	protected void write8(int address, int val) {
-		//TODO
+		wait.access16(address);
+		memory.write8(address, val);
+		if (blocks.isCode(address))
+			blocks.invalidate(address, 1);
+		else if ((address >>> 24) == Memory.IO)
+			ioWritten();
+	}
+
+	/**
+	 * Called after every write to IO. If the write halted the CPU (HALTCNT), the instruction is
+	 * treated as a branch to the next one so that nothing after it runs until the halt ends.
+	 */
+	private void ioWritten() {
+		if (!branched && interrupts.isHalted()) {
+			pc += (cpsr.thumb) ? 2 : 4;
+			branched = true;
+		}
+	}
+
+	/**
+	 * Halts the CPU like a write to HALTCNT, for the Halt and Stop BIOS calls.
+	 */
+	protected void halt(boolean stop) {
+		memory.write8(Memory.IO << 24 | Interrupts.HALTCNT, (stop) ? 0x80 : 0);
 	}
 
 	protected void softwareInterrupt(byte arg) {
+		swi.execute(arg);
+	}
 
+	/**
+	 * Must be called after memory is written without going through write32/16/8.
+	 */
+	protected void written(int address, int length) {
+		blocks.written(address, length);
 	}
 
 	protected void undefinedTrap() {
@@ -252,6 +498,8 @@ public class CPU {
 
 	//Dump reg (hex value)
 	private String dr(int r, int i) {
-		return ByteUtils.hexi(regs[r][i]);
+		if (r < 0x8 || r == 0xF || cpsr.mapHighRegister(r - 0x8) == i)
+			return ByteUtils.hexi(regs[r]);
+		return ByteUtils.hexi(banks[r - 0x8][i]);
 	}
 }
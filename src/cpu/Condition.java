@@ -77,6 +77,39 @@ public class Condition {
 	 */
 	public static final byte AL = 14;
 	
+	/**
+	 * Map from condition to a 16 bit mask, where bit n is set if the condition passes
+	 * when the packed flags (see {@link CPSR#nzcv()}) are equal to n.
+	 */
+	private static final short[] CONDITION_TABLE = new short[16];
+
+	/**
+	 * Bit n is set if condition n reads the C or V flag, only those force the lazy flags to be evaluated.
+	 */
+	private static final int READS_CV;
+
+	static {
+		int readsCV = 0;
+		for (byte cond = 0; cond < CONDITION_TABLE.length; ++cond) {
+			int mask = 0;
+			for (int nzcv = 0; nzcv < 16; ++nzcv)
+				if (evaluate(cond, (nzcv & 0x8) != 0, (nzcv & 0x4) != 0, (nzcv & 0x2) != 0, (nzcv & 0x1) != 0))
+					mask |= 1 << nzcv;
+			CONDITION_TABLE[cond] = (short) mask;
+			for (int nz = 0; nz < 16; nz += 4) //The result has to be the same for every C and V
+				if (((mask >>> nz) & 0xF) != 0 && ((mask >>> nz) & 0xF) != 0xF)
+					readsCV |= 1 << cond;
+		}
+		READS_CV = readsCV;
+	}
+
+	/**
+	 * @return Whether cond only depends on the N and Z flags
+	 */
+	public static boolean onlyNZ(byte cond) {
+		return cond == EQ || cond == NE || cond == MI || cond == PL;
+	}
+
 	/**
 	 * Evaluates the condition given the cpsr, which contains the condition bits. 
 	 * 
@@ -84,27 +117,38 @@ public class Condition {
 	 * @param cpsr Status Register
 	 */
 	public static boolean condition(byte cond, CPSR cpsr) {
+		cond &= 0xF;
+		if (cond == AL)
+			return true;
+		int flags = (((READS_CV >>> cond) & 0x1) != 0) ? cpsr.nzcv() : cpsr.nz();
+		return ((CONDITION_TABLE[cond] >>> flags) & 0x1) != 0;
+	}
+
+	/**
+	 * Evaluates the condition given the individual flags. Used once to build the condition table.
+	 */
+	private static boolean evaluate(byte cond, boolean negative, boolean zero, boolean carry, boolean overflow) {
 		switch(cond) {
-		case EQ: return cpsr.zero; //Z set
-		case NE: return !cpsr.zero; //Z clear
+		case EQ: return zero; //Z set
+		case NE: return !zero; //Z clear
 		
-		case CS: return cpsr.carry; //C set
-		case CC: return !cpsr.carry; //C clear
+		case CS: return carry; //C set
+		case CC: return !carry; //C clear
 		
-		case MI: return cpsr.negative; //N set
-		case PL: return !cpsr.negative; //N clear
+		case MI: return negative; //N set
+		case PL: return !negative; //N clear
 		
-		case VS: return cpsr.overflow; //V set
-		case VC: return !cpsr.overflow; //V clear
+		case VS: return overflow; //V set
+		case VC: return !overflow; //V clear
 		
-		case HI: return cpsr.carry && !cpsr.zero; //C set AND Z clear
-		case LS: return !cpsr.carry || cpsr.zero; //C clear OR Z set
+		case HI: return carry && !zero; //C set AND Z clear
+		case LS: return !carry || zero; //C clear OR Z set
 		
-		case GE: return cpsr.negative == cpsr.overflow; //N equals V
-		case LT: return cpsr.negative != cpsr.overflow; //N not equal to V
+		case GE: return negative == overflow; //N equals V
+		case LT: return negative != overflow; //N not equal to V
 		
-		case GT: return !cpsr.zero && cpsr.negative == cpsr.overflow; //Z clear AND (N equals V)
-		case LE: return cpsr.zero || cpsr.negative != cpsr.overflow; //Z set OR (Not equal to V)
+		case GT: return !zero && negative == overflow; //Z clear AND (N equals V)
+		case LE: return zero || negative != overflow; //Z set OR (Not equal to V)
 		
 		case AL: return true;
 		default: return false;
@@ -0,0 +1,212 @@
+package cpu;
+
+import java.util.Random;
+
+/**
+ * Checks the lazily evaluated C and V flags against eager evaluation and against a reference
+ * written from the ARM definitions (SUB is op1 + NOT op2 + 1, SBC is op1 + NOT op2 + C), then
+ * times an ALU heavy ARM and THUMB loop with lazy and eager flags.
+ * <p>
+ * Usage: java cpu.FlagsBenchmark [cycles]
+ *
+ * @author David Goldman
+ */
+public class FlagsBenchmark {
+
+	private static final int BASE = 0x03000000;
+	private static final int RUNS = 5;
+	private static final int SEQUENCES = 100000;
+	private static final int SEQUENCE_LENGTH = 16;
+
+	/*
+	 * loop: adds r0, r0, r1; adcs r2, r2, r0; subs r4, r4, r2; adds r1, r1, r4; subs r5, r5, r1;
+	 * subs r3, r3, #1; bne loop
+	 */
+	private static final int[] ARM_LOOP = { 0xE0900001, 0xE0B22000, 0xE0544002, 0xE0911004, 0xE0555001, 0xE2533001, 0x1AFFFFF8 };
+
+	/*
+	 * The same loop in THUMB: add r0, r0, r1; adc r2, r0; sub r4, r4, r2; add r1, r1, r4; sub r5, r5, r1;
+	 * sub r3, #1; bne loop
+	 */
+	private static final int[] THUMB_LOOP = { 0x1840, 0x4142, 0x1AA4, 0x1909, 0x1A6D, 0x3B01, 0xD1F8 };
+
+	private static final int[] EDGES = { 0, 1, -1, 2, 0x7FFFFFFF, 0x80000000, 0x80000001, 0x7FFFFFFE, 0xFFFF, 0x10000 };
+
+	private static final CPU cpu = new CPU();
+	private static int failures;
+
+	private static void check(boolean ok, String message) {
+		if (!ok && failures++ < 20)
+			System.out.println(message);
+	}
+
+	/**
+	 * @return NZCV of op1 + op2 + carryIn, from the ARM definition
+	 */
+	private static int referenceAdd(int op1, int op2, int carryIn) {
+		long sum = (op1 & 0xFFFFFFFFL) + (op2 & 0xFFFFFFFFL) + carryIn;
+		int result = (int) sum;
+		int nzcv = ((result < 0) ? 0x8 : 0) | ((result == 0) ? 0x4 : 0);
+		if ((sum >>> 32) != 0)
+			nzcv |= 0x2;
+		if (((op1 ^ result) & (op2 ^ result)) < 0)
+			nzcv |= 0x1;
+		return nzcv;
+	}
+
+	private static int operand(Random random) {
+		return (random.nextBoolean()) ? EDGES[random.nextInt(EDGES.length)] : random.nextInt();
+	}
+
+	/**
+	 * Runs random sequences of flag operations on a lazy and an eager CPSR and the reference. The
+	 * flags are only read after some of the operations, so pending evaluations get overwritten,
+	 * partially written and read by ADC/SBC.
+	 */
+	private static void checkSequences(Random random) {
+		CPSR lazy = new CPSR(cpu), eager = new CPSR(cpu);
+		eager.setLazyFlags(false);
+		for (int sequence = 0; sequence < SEQUENCES; ++sequence) {
+			int reference = random.nextInt(0x10);
+			lazy.loadFlagBits(reference << 28);
+			eager.loadFlagBits(reference << 28);
+			String ops = "";
+			for (int i = 0; i < SEQUENCE_LENGTH; ++i) {
+				int op1 = operand(random), op2 = operand(random);
+				int carry = (reference >>> 1) & 0x1;
+				int a, b;
+				switch(random.nextInt(8)) {
+				case 0:
+					ops += " ADD";
+					a = lazy.setAddFlags(op1, op2);
+					b = eager.setAddFlags(op1, op2);
+					reference = referenceAdd(op1, op2, 0);
+					break;
+				case 1:
+					ops += " SUB";
+					a = lazy.setSubFlags(op1, op2);
+					b = eager.setSubFlags(op1, op2);
+					reference = referenceAdd(op1, ~op2, 1);
+					break;
+				case 2:
+					ops += " ADC";
+					a = lazy.setAddCarryFlags(op1, op2);
+					b = eager.setAddCarryFlags(op1, op2);
+					reference = referenceAdd(op1, op2, carry);
+					break;
+				case 3:
+					ops += " SBC";
+					a = lazy.setSubCarryFlags(op1, op2);
+					b = eager.setSubCarryFlags(op1, op2);
+					reference = referenceAdd(op1, ~op2, carry);
+					break;
+				case 4:
+					ops += " C=" + (op1 & 0x1);
+					lazy.setCarry((op1 & 0x1) != 0);
+					eager.setCarry((op1 & 0x1) != 0);
+					reference = (reference & ~0x2) | ((op1 & 0x1) << 1);
+					a = b = 0;
+					break;
+				case 5:
+					ops += " V=" + (op1 & 0x1);
+					lazy.setOverflow((op1 & 0x1) != 0);
+					eager.setOverflow((op1 & 0x1) != 0);
+					reference = (reference & ~0x1) | (op1 & 0x1);
+					a = b = 0;
+					break;
+				case 6:
+					ops += " NZ";
+					lazy.setNZ(op1);
+					eager.setNZ(op1);
+					reference = (reference & 0x3) | ((op1 < 0) ? 0x8 : 0) | ((op1 == 0) ? 0x4 : 0);
+					a = b = 0;
+					break;
+				default:
+					ops += " MSR";
+					lazy.loadFlagBits(op1);
+					eager.loadFlagBits(op1);
+					reference = op1 >>> 28;
+					a = b = 0;
+					break;
+				}
+				check(a == b, "Result differs after" + ops);
+				if (random.nextInt(4) == 0) {
+					check(lazy.nzcv() == reference && eager.nzcv() == reference,
+							"NZCV after" + ops + ": lazy " + lazy.nzcv() + ", eager " + eager.nzcv() + ", expected " + reference);
+					ops = "";
+				}
+			}
+			check((lazy.save() >>> 28) == reference && (eager.save() >>> 28) == reference,
+					"Saved NZCV after" + ops + ": lazy " + (lazy.save() >>> 28) + ", eager " + (eager.save() >>> 28) + ", expected " + reference);
+		}
+	}
+
+	private static CPU load(int[] loop, boolean thumb, boolean lazyFlags) {
+		CPU cpu = new CPU();
+		for (int i = 0; i < loop.length; ++i) {
+			if (thumb)
+				cpu.memory.write16(BASE + (i << 1), loop[i]);
+			else
+				cpu.memory.write32(BASE + (i << 2), loop[i]);
+		}
+		cpu.cpsr.setLazyFlags(lazyFlags);
+		cpu.cpsr.thumb = thumb;
+		cpu.pc = BASE;
+		cpu.setReg(1, 0x9E3779B9); //Mixes carries and overflows into the chain
+		cpu.setReg(3, 0x7FFFFFFF); //Loop counter, never reaches 0
+		return cpu;
+	}
+
+	/**
+	 * Runs the loop with lazy and eager flags, which have to end in the same state.
+	 */
+	private static void checkLoop(String name, int[] loop, boolean thumb) {
+		CPU lazy = load(loop, thumb, true), eager = load(loop, thumb, false);
+		lazy.run(1000000);
+		eager.run(1000000);
+		for (int reg = 0; reg < 6; ++reg)
+			check(lazy.getReg(reg) == eager.getReg(reg), name + " r" + reg + " differs");
+		check(lazy.cpsr.save() == eager.cpsr.save(), name + " CPSR differs: lazy " + lazy.cpsr + ", eager " + eager.cpsr);
+	}
+
+	private static long time(int[] loop, boolean thumb, boolean lazyFlags, long cycles) {
+		CPU cpu = load(loop, thumb, lazyFlags);
+		long start = System.nanoTime();
+		cpu.run(cycles);
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return The fastest of RUNS runs after a warm up, in ms
+	 */
+	private static long best(int[] loop, boolean thumb, boolean lazyFlags, long cycles) {
+		time(loop, thumb, lazyFlags, cycles / 5);
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < RUNS; ++i)
+			best = Math.min(best, time(loop, thumb, lazyFlags, cycles));
+		return best / 1000000;
+	}
+
+	private static void report(String name, int[] loop, boolean thumb, long cycles) {
+		long eager = best(loop, thumb, false, cycles);
+		long lazy = best(loop, thumb, true, cycles);
+		System.out.println(name + ": eager flags " + eager + " ms, lazy flags " + lazy + " ms (" +
+				(eager * 100 / Math.max(lazy, 1)) + "%)");
+	}
+
+	public static void main(String[] args) {
+		long cycles = (args.length > 0) ? Long.parseLong(args[0]) : 100000000L;
+
+		checkSequences(new Random(0));
+		checkLoop("ARM", ARM_LOOP, false);
+		checkLoop("THUMB", THUMB_LOOP, true);
+		System.out.println((failures == 0) ? "All flags match" : failures + " failures");
+
+		report("ARM", ARM_LOOP, false, cycles);
+		report("THUMB", THUMB_LOOP, true, cycles);
+
+		if (failures != 0)
+			System.exit(1);
+	}
+
+}
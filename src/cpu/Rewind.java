@@ -0,0 +1,223 @@
+package cpu;
+
+import java.nio.ByteBuffer;
+
+import utils.LoadException;
+
+/**
+ * Rewind history: a ring of the last frames, each stored as the delta back to the frame before
+ * it. Only the newest state is kept whole (as a {@link SaveState}), a delta is the XOR of two
+ * consecutive states run length encoded. Consecutive frames mostly differ in a few bytes, so the
+ * XOR is nearly all zeros.
+ * <p>
+ * The deltas are stored in a fixed arena used as a ring buffer, so frames are never allocated.
+ * Once the arena (the memory budget) or the frame limit is full the oldest frames are dropped.
+ * Besides the arena, the two whole states and a scratch delta take about 5 state sizes.
+ *
+ * @author David Goldman
+ */
+public class Rewind {
+
+	/**
+	 * Zero runs shorter than this are kept inside a literal, a run costs at least two bytes.
+	 */
+	private static final int MIN_ZERO_RUN = 4;
+
+	private final CPU cpu;
+
+	/*
+	 * The newest state, and the state being pushed
+	 */
+	private byte[] current, next;
+	private boolean hasCurrent;
+
+	private final byte[] delta; //Encoded delta being pushed
+
+	private final byte[] arena;
+	private int writeOffset;
+
+	/*
+	 * Ring of frames in the arena, oldest first
+	 */
+	private final int[] starts, lengths;
+	private int oldest, count;
+
+	/**
+	 * @param frames The most frames to keep (e.g. 60 per second of history)
+	 * @param budget The size of the arena for the deltas in bytes
+	 * @throws IllegalArgumentException If frames or budget isn't positive
+	 */
+	public Rewind(CPU cpu, int frames, int budget) {
+		if (frames <= 0)
+			throw new IllegalArgumentException("Frames must be positive: " + frames);
+		if (budget <= 0)
+			throw new IllegalArgumentException("Budget must be positive: " + budget);
+		this.cpu = cpu;
+		int size = SaveState.size(cpu);
+		current = new byte[size];
+		next = new byte[size];
+		delta = new byte[size * 3 + 32]; //Worst case for alternating literals and short zero runs
+		arena = new byte[budget];
+		starts = new int[frames];
+		lengths = new int[frames];
+	}
+
+	/**
+	 * @return The number of frames that can be popped
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Records the current state of the CPU as the newest frame.
+	 */
+	public void push() {
+		SaveState.save(cpu, ByteBuffer.wrap(next));
+		if (hasCurrent) {
+			int length = encode(next, current, delta);
+			store(length);
+		}
+		byte[] swap = current;
+		current = next;
+		next = swap;
+		hasCurrent = true;
+	}
+
+	/**
+	 * Goes back one frame: the CPU is loaded with the state pushed before the newest one.
+	 *
+	 * @return False if there is no older frame
+	 */
+	public boolean pop() {
+		if (count == 0)
+			return false;
+		int newest = (oldest + count - 1) % starts.length;
+		decode(arena, starts[newest], lengths[newest], current);
+		writeOffset = starts[newest];
+		--count;
+		try {
+			SaveState.load(cpu, ByteBuffer.wrap(current));
+		} catch (LoadException e) { //Written by push(), can't be malformed
+			throw new IllegalStateException(e);
+		}
+		return true;
+	}
+
+	/**
+	 * Drops the history, the next push starts over.
+	 */
+	public void clear() {
+		count = oldest = writeOffset = 0;
+		hasCurrent = false;
+	}
+
+	/**
+	 * Copies the encoded delta into the arena after the newest frame, dropping the oldest frames in the way.
+	 */
+	private void store(int length) {
+		if (length > arena.length) { //Doesn't fit at all, the history can't go back past this frame
+			count = oldest = writeOffset = 0;
+			return;
+		}
+		if (count == starts.length)
+			drop();
+		if (writeOffset + length > arena.length) {
+			//The frames between writeOffset and the end are the oldest, they are skipped over
+			while (count > 0 && starts[oldest] >= writeOffset)
+				drop();
+			writeOffset = 0;
+		}
+		while (count > 0 && starts[oldest] < writeOffset + length && starts[oldest] + lengths[oldest] > writeOffset)
+			drop();
+
+		System.arraycopy(delta, 0, arena, writeOffset, length);
+		int frame = (oldest + count) % starts.length;
+		starts[frame] = writeOffset;
+		lengths[frame] = length;
+		++count;
+		writeOffset += length;
+	}
+
+	private void drop() {
+		oldest = (oldest + 1) % starts.length;
+		if (--count == 0)
+			writeOffset = 0;
+	}
+
+	/**
+	 * Encodes a ^ b as pairs of (zero run, literal length) varints, each followed by the literal bytes.
+	 *
+	 * @return The length of the encoding in out
+	 */
+	private static int encode(byte[] a, byte[] b, byte[] out) {
+		int length = 0;
+		int i = 0;
+		while (i < a.length) {
+			int zeros = i;
+			while (i < a.length && a[i] == b[i])
+				++i;
+			zeros = i - zeros;
+			if (i == a.length) //Trailing zeros don't need to be stored
+				break;
+
+			int literal = i;
+			while (i < a.length) {
+				if (a[i] != b[i]) {
+					++i;
+					continue;
+				}
+				int run = i;
+				while (run < a.length && run - i < MIN_ZERO_RUN && a[run] == b[run])
+					++run;
+				if (run - i == MIN_ZERO_RUN || run == a.length)
+					break; //Long enough for its own run (or the end)
+				i = run;
+			}
+			int literalLength = i - literal;
+
+			length = putVarint(out, length, zeros);
+			length = putVarint(out, length, literalLength);
+			for (int j = literal; j < i; ++j)
+				out[length++] = (byte) (a[j] ^ b[j]);
+		}
+		return length;
+	}
+
+	/**
+	 * XORs the delta in data[offset, offset + length) into state.
+	 */
+	private static void decode(byte[] data, int offset, int length, byte[] state) {
+		int end = offset + length;
+		int position = 0;
+		while (offset < end) {
+			int zeros = 0;
+			for (int shift = 0; ; shift += 7) {
+				int b = data[offset++];
+				zeros |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					break;
+			}
+			int literal = 0;
+			for (int shift = 0; ; shift += 7) {
+				int b = data[offset++];
+				literal |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					break;
+			}
+			position += zeros;
+			for (int i = 0; i < literal; ++i)
+				state[position++] ^= data[offset++];
+		}
+	}
+
+	private static int putVarint(byte[] out, int index, int value) {
+		while ((value & ~0x7F) != 0) {
+			out[index++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[index++] = (byte) value;
+		return index;
+	}
+
+}
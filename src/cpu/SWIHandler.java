@@ -1,13 +1,115 @@
 package cpu;
 
+import java.util.Arrays;
+
+import cores.Memory;
+
 public class SWIHandler {
 
 	private final CPU cpu;
 
+	/**
+	 * sin(i * PI / 128) in 2.14 fixed point, the BIOS uses the same 256 entry table for the
+	 * affine calls (cos(i) is SINE_TABLE[(i + 0x40) & 0xFF]).
+	 */
+	private static final short[] SINE_TABLE = new short[0x100];
+
+	static {
+		for (int i = 0; i < SINE_TABLE.length; ++i)
+			SINE_TABLE[i] = (short) Math.round(Math.sin(i * Math.PI / 128) * 0x4000);
+	}
+
+	/**
+	 * sqrt(i + 0.5) in 12.4 fixed point, the first estimate for Sqrt.
+	 */
+	private static final short[] SQRT_TABLE = new short[0x100];
+
+	static {
+		for (int i = 0; i < SQRT_TABLE.length; ++i)
+			SQRT_TABLE[i] = (short) Math.round(Math.sqrt(i + 0.5) * 16);
+	}
+
+	/**
+	 * Whether ArcTan2 looks its results up in ARCTAN_TABLE instead of evaluating the polynomial.
+	 */
+	private boolean arcTanTable;
+
+	/**
+	 * ArcTan results for every tan in [-0x4000, 0x4000] (1.14 fixed point), the only values ArcTan2
+	 * passes for 16 bit coordinates.
+	 */
+	private static final short[] ARCTAN_TABLE = new short[0x8001];
+
+	static {
+		for (int i = 0; i < ARCTAN_TABLE.length; ++i)
+			ARCTAN_TABLE[i] = (short) arcTanPolynomial(i - 0x4000);
+	}
+
+	/*
+	 * Cursor over the source of a decompression. Reads come straight from the backing array until
+	 * the end of its run, ROM and later runs are read in chunks, anything else from the bus.
+	 */
+	private byte[] srcData;
+	private int srcAddress, srcIndex, srcEnd;
+	private final byte[] srcChunk = new byte[0x400];
+
+	/*
+	 * The affine calls convert this many structures at a time, whatever the count in r2 is
+	 */
+	private static final int AFFINE_BATCH = 32;
+	private final byte[] affineIn = new byte[AFFINE_BATCH * 20];
+	private final byte[] affineOut = new byte[AFFINE_BATCH << 4];
+
 	public SWIHandler(CPU cpu) {
 		this.cpu = cpu;
 	}
 
+	private void setSource(int address) {
+		srcAddress = address;
+		srcData = cpu.memory.getReadArray(address);
+		srcIndex = srcEnd = 0;
+		if (srcData != null) {
+			srcIndex = cpu.memory.getIndex(address);
+			srcEnd = srcIndex + cpu.memory.contiguous(address);
+		}
+	}
+
+	/**
+	 * Reads the next chunk of the source into srcChunk, used for ROM (which has no array) and
+	 * after the end of a run.
+	 *
+	 * @return False if the source continues in memory without a backing array or ROM
+	 */
+	private boolean refillSource() {
+		int length = Math.min(cpu.memory.contiguous(srcAddress), srcChunk.length);
+		if (length == 0)
+			return false;
+		cpu.memory.read(srcAddress, srcChunk, 0, length);
+		srcData = srcChunk;
+		srcIndex = 0;
+		srcEnd = length;
+		return true;
+	}
+
+	private int source8() {
+		if (srcIndex == srcEnd && !refillSource())
+			return cpu.memory.read8(srcAddress++);
+		++srcAddress;
+		return srcData[srcIndex++] & 0xFF;
+	}
+
+	private int source32() {
+		return source8() | (source8() << 8) | (source8() << 16) | (source8() << 24);
+	}
+
+	/**
+	 * Bulk store of a decompressed buffer.
+	 */
+	private void store(int address, byte[] data, int length, boolean halfwords) {
+		cpu.memory.write(address, data, 0, length, halfwords);
+		cpu.written(address, length);
+	}
+
 	public void execute(byte instr) {
 		switch(instr) {
 		case 0x0: softReset(); break;
@@ -72,13 +174,11 @@ public class SWIHandler {
 	}
 
 	private void halt() {
-		// TODO Auto-generated method stub
-
+		cpu.halt(false);
 	}
 
 	private void stop() {
-		// TODO Auto-generated method stub
-
+		cpu.halt(true);
 	}
 
 	private void intrWait() {
@@ -92,54 +192,179 @@ public class SWIHandler {
 	}
 
 	private void div() {
-		int numer = cpu.getLowReg(0);
-		int denom = cpu.getLowReg(1);
-		if (denom == 0) {
-			//TODO Something more useful
-			cpu.regDump();
-			throw new RuntimeException("(EMULATED) BIOS/SWI ERROR: Division by zero");
-		}
-		cpu.setLowReg(0, numer / denom);
-		cpu.setLowReg(1, numer % denom);
-		cpu.setLowReg(3, Math.abs(numer / denom));
+		divide(cpu.getLowReg(0), cpu.getLowReg(1));
 	}
 
 	private void divArm() {
-		int numer = cpu.getLowReg(1);
-		int denom = cpu.getLowReg(0);
-		if (denom == 0) {
-			//TODO Something more useful
-			cpu.regDump();
-			throw new RuntimeException("(EMULATED) BIOS/SWI ERROR: Division by zero");
+		divide(cpu.getLowReg(1), cpu.getLowReg(0));
+	}
+
+	/**
+	 * r0 = numer / denom, r1 = numer % denom, r3 = abs(numer / denom).
+	 */
+	private void divide(int numer, int denom) {
+		if (denom == 0) { //The BIOS loops forever, give the result it would converge to instead
+			cpu.setLowReg(0, (numer < 0) ? -1 : 1);
+			cpu.setLowReg(1, numer);
+			cpu.setLowReg(3, 1);
+			return;
 		}
-		cpu.setLowReg(0, numer / denom);
+		int quotient = numer / denom; //0x80000000 / -1 wraps like the BIOS
+		cpu.setLowReg(0, quotient);
 		cpu.setLowReg(1, numer % denom);
-		cpu.setLowReg(3, Math.abs(numer / denom));
+		cpu.setLowReg(3, (quotient < 0) ? -quotient : quotient);
 	}
 
+	/**
+	 * Sqrt of unsigned r0, rounded down. An 8 bit estimate from SQRT_TABLE is refined by one
+	 * Newton step, which never ends up below the result, and then stepped down to it.
+	 */
 	private void sqrt() {
-		//Sqrt of unsigned int
-		cpu.setLowReg(0, (int) Math.sqrt(cpu.getLowReg(0) & 0xFFFFFFFFL));
+		long value = cpu.getLowReg(0) & 0xFFFFFFFFL;
+		if (value == 0) {
+			cpu.setLowReg(0, 0);
+			return;
+		}
+		int shift = Math.max(57 - Long.numberOfLeadingZeros(value), 0) & ~0x1; //Even, leaves at most 8 bits
+		long root = (((long) SQRT_TABLE[(int) (value >>> shift)] << (shift >>> 1)) + 0x8) >>> 4;
+		root = (root + value / root) >>> 1;
+		while (root * root > value)
+			--root;
+		cpu.setLowReg(0, (int) root);
 	}
 
-	private void arcTan() {
-		// TODO Auto-generated method stub
-		
+	public void setArcTanTable(boolean enabled) {
+		arcTanTable = enabled;
 	}
 
-	private void arcTan2() {
-		// TODO Auto-generated method stub
+	private static int arcTanSquare(int i) {
+		return -((i * i) >> 14);
+	}
 
+	/**
+	 * The BIOS polynomial, r3 is left with the final b.
+	 */
+	private static int arcTanB(int a) {
+		int b = ((0xA9 * a) >> 14) + 0x390;
+		b = ((b * a) >> 14) + 0x91C;
+		b = ((b * a) >> 14) + 0xFB6;
+		b = ((b * a) >> 14) + 0x16AA;
+		b = ((b * a) >> 14) + 0x2081;
+		b = ((b * a) >> 14) + 0x3651;
+		return ((b * a) >> 14) + 0xA2F9;
 	}
 
-	private void cpuSet() {
-		// TODO Auto-generated method stub
+	private static int arcTanPolynomial(int i) {
+		return (i * arcTanB(arcTanSquare(i))) >> 16;
+	}
 
+	/**
+	 * r0 = arctan(r0) for r0 in 1.14 fixed point, in the range [-PI/2, PI/2] as [-0x4000, 0x4000].
+	 */
+	private void arcTan() {
+		int i = cpu.getLowReg(0);
+		int a = arcTanSquare(i);
+		int b = arcTanB(a);
+		cpu.setLowReg(0, (i * b) >> 16);
+		cpu.setLowReg(1, a);
+		cpu.setLowReg(3, b);
+	}
+
+	/**
+	 * ArcTan for ArcTan2, sets r1 like the BIOS.
+	 */
+	private int arcTan2Part(int i) {
+		cpu.setLowReg(1, arcTanSquare(i));
+		if (arcTanTable && i >= -0x4000 && i <= 0x4000)
+			return ARCTAN_TABLE[i + 0x4000];
+		return arcTanPolynomial(i);
+	}
+
+	/**
+	 * r0 = the angle of (x = r0, y = r1) in [0, 2PI) as [0, 0xFFFF]. The octant is chosen so that
+	 * ArcTan is only ever called with |tan| <= 1.
+	 */
+	private void arcTan2() {
+		int x = cpu.getLowReg(0);
+		int y = cpu.getLowReg(1);
+		int angle;
+		if (y == 0)
+			angle = (x >= 0) ? 0 : 0x8000;
+		else if (x == 0)
+			angle = (y >= 0) ? 0x4000 : 0xC000;
+		else if (y >= 0) {
+			if (x >= 0 && x >= y)
+				angle = arcTan2Part((y << 14) / x);
+			else if (x < 0 && -x >= y)
+				angle = arcTan2Part((y << 14) / x) + 0x8000;
+			else
+				angle = 0x4000 - arcTan2Part((x << 14) / y);
+		}
+		else {
+			if (x <= 0 && -x > -y)
+				angle = arcTan2Part((y << 14) / x) + 0x8000;
+			else if (x > 0 && x >= -y)
+				angle = arcTan2Part((y << 14) / x) + 0x10000;
+			else
+				angle = 0xC000 - arcTan2Part((x << 14) / y);
+		}
+		cpu.setLowReg(0, angle & 0xFFFF);
+		cpu.setLowReg(3, 0x170);
 	}
 
+	/**
+	 * Copy or fill (r2 bit 24) r2 bit 0-20 halfwords or words (r2 bit 26) from r0 to r1.
+	 */
+	private void cpuSet() {
+		int src = cpu.getLowReg(0);
+		int dst = cpu.getLowReg(1);
+		int control = cpu.getLowReg(2);
+		if ((src & 0x0E000000) == 0) //The BIOS refuses to read from itself
+			return;
+		int unit = ((control & 0x4000000) != 0) ? 4 : 2;
+		transfer(src & -unit, dst & -unit, (control & 0x1FFFFF) * unit, (control & 0x1000000) != 0, unit);
+	}
+
+	/**
+	 * Copy or fill (r2 bit 24) r2 bit 0-20 words from r0 to r1, in blocks of 8 words.
+	 */
 	private void cpuFastSet() {
-		// TODO Auto-generated method stub
-
+		int src = cpu.getLowReg(0);
+		int dst = cpu.getLowReg(1);
+		int control = cpu.getLowReg(2);
+		if ((src & 0x0E000000) == 0)
+			return;
+		int count = ((control & 0x1FFFFF) + 7) & ~0x7; //Rounded up to a multiple of 8
+		transfer(src & ~0x3, dst & ~0x3, count << 2, (control & 0x1000000) != 0, 4);
+	}
+
+	/**
+	 * Bulk copy/fill of length bytes within the backing arrays, or unit by unit over the bus when
+	 * a range crosses IO, SRAM or a mirror.
+	 */
+	private void transfer(int src, int dst, int length, boolean fill, int unit) {
+		if (length == 0)
+			return;
+		Memory memory = cpu.memory;
+		if (fill) {
+			int value = (unit == 4) ? memory.read32(src) : memory.read16(src);
+			if (!memory.fill(dst, length, value, unit))
+				for (int i = 0; i < length; i += unit) {
+					if (unit == 4)
+						memory.write32(dst + i, value);
+					else
+						memory.write16(dst + i, value);
+				}
+		}
+		else if (!memory.copy(src, dst, length)) {
+			for (int i = 0; i < length; i += unit) {
+				if (unit == 4)
+					memory.write32(dst + i, memory.read32(src + i));
+				else
+					memory.write16(dst + i, memory.read16(src + i));
+			}
+		}
+		cpu.written(dst, length);
 	}
 
 	private void getBiosChecksum() {
@@ -147,14 +372,114 @@ public class SWIHandler {
 
 	}
 
+	/**
+	 * BgAffineSet for r2 structures from r0 (20 bytes each) to r1 (16 bytes each). The source
+	 * holds the center in the background (s32 8.8 x, y), the center on screen (s16 x, y), the
+	 * scale (s16 8.8 x, y) and the angle (u16, only the upper byte is used). The result is the
+	 * rotation/scaling matrix (s16 8.8 pa, pb, pc, pd) and the start point (s32 8.8 x, y).
+	 */
 	private void bgAffineset() {
-		// TODO Auto-generated method stub
-
+		int count = cpu.getLowReg(2);
+		int src = cpu.getLowReg(0);
+		int dst = cpu.getLowReg(1);
+		for (; count > 0; count -= AFFINE_BATCH, src += AFFINE_BATCH * 20, dst += AFFINE_BATCH << 4) {
+			int batch = Math.min(count, AFFINE_BATCH);
+			cpu.memory.read(src, affineIn, 0, batch * 20);
+			for (int i = 0, in = 0, out = 0; i < batch; ++i, in += 20, out += 16) {
+				int originX = get32(affineIn, in);
+				int originY = get32(affineIn, in + 4);
+				int centerX = (short) get16(affineIn, in + 8);
+				int centerY = (short) get16(affineIn, in + 10);
+				int scaleX = (short) get16(affineIn, in + 12);
+				int scaleY = (short) get16(affineIn, in + 14);
+				int angle = affineIn[in + 17] & 0xFF;
+				int sin = SINE_TABLE[angle];
+				int cos = SINE_TABLE[(angle + 0x40) & 0xFF];
+				int pa = (cos * scaleX) >> 14;
+				int pb = -((sin * scaleX) >> 14);
+				int pc = (sin * scaleY) >> 14;
+				int pd = (cos * scaleY) >> 14;
+				put16(affineOut, out, pa);
+				put16(affineOut, out + 2, pb);
+				put16(affineOut, out + 4, pc);
+				put16(affineOut, out + 6, pd);
+				put32(affineOut, out + 8, originX - (pa * centerX + pb * centerY));
+				put32(affineOut, out + 12, originY - (pc * centerX + pd * centerY));
+			}
+			store(dst, affineOut, batch << 4, true);
+		}
 	}
 
+	/**
+	 * ObjAffineSet for r2 structures from r0 (8 bytes each: s16 8.8 scale x, y and u16 angle).
+	 * pa, pb, pc and pd are written r3 bytes apart from r1, 2 for a plain array and 8 for OAM.
+	 * The span covering them is read first so the bytes between them are stored back unchanged.
+	 */
 	private void objAffineSet() {
-		// TODO Auto-generated method stub
+		int count = cpu.getLowReg(2);
+		int src = cpu.getLowReg(0);
+		int dst = cpu.getLowReg(1);
+		int stride = cpu.getLowReg(3);
+		for (; count > 0; count -= AFFINE_BATCH, src += AFFINE_BATCH << 3, dst += (AFFINE_BATCH << 2) * stride) {
+			int batch = Math.min(count, AFFINE_BATCH);
+			long span = (batch * 4L - 1) * stride + 2;
+			if (stride < 2 || span > cpu.memory.contiguous(dst)) { //Overlapping or scattered outputs
+				objAffineSetBus(batch, src, dst, stride);
+				continue;
+			}
+			byte[] out = (span <= affineOut.length) ? affineOut : new byte[(int) span]; //At most the size of a region
+			cpu.memory.read(src, affineIn, 0, batch << 3);
+			if (stride != 2)
+				cpu.memory.read(dst, out, 0, (int) span);
+			for (int i = 0, in = 0, param = 0; i < batch; ++i, in += 8, param += stride << 2) {
+				int scaleX = (short) get16(affineIn, in);
+				int scaleY = (short) get16(affineIn, in + 2);
+				int angle = affineIn[in + 5] & 0xFF;
+				int sin = SINE_TABLE[angle];
+				int cos = SINE_TABLE[(angle + 0x40) & 0xFF];
+				put16(out, param, (cos * scaleX) >> 14);
+				put16(out, param + stride, -((sin * scaleX) >> 14));
+				put16(out, param + (stride << 1), (sin * scaleY) >> 14);
+				put16(out, param + stride * 3, (cos * scaleY) >> 14);
+			}
+			store(dst, out, (int) span, true);
+		}
+	}
+
+	/**
+	 * ObjAffineSet one halfword at a time, in the order the BIOS stores them.
+	 */
+	private void objAffineSetBus(int count, int src, int dst, int stride) {
+		for (int i = 0; i < count; ++i, src += 8) {
+			int scaleX = (short) cpu.memory.read16(src);
+			int scaleY = (short) cpu.memory.read16(src + 2);
+			int angle = cpu.memory.read16(src + 4) >>> 8;
+			int sin = SINE_TABLE[angle];
+			int cos = SINE_TABLE[(angle + 0x40) & 0xFF];
+			int[] params = { (cos * scaleX) >> 14, -((sin * scaleX) >> 14), (sin * scaleY) >> 14, (cos * scaleY) >> 14 };
+			for (int j = 0; j < 4; ++j, dst += stride) {
+				cpu.memory.write16(dst, params[j]);
+				cpu.written(dst, 2);
+			}
+		}
+	}
 
+	private static int get16(byte[] data, int index) {
+		return (data[index] & 0xFF) | ((data[index + 1] & 0xFF) << 8);
+	}
+
+	private static int get32(byte[] data, int index) {
+		return get16(data, index) | (get16(data, index + 2) << 16);
+	}
+
+	private static void put16(byte[] data, int index, int value) {
+		data[index] = (byte) value;
+		data[index + 1] = (byte) (value >>> 8);
+	}
+
+	private static void put32(byte[] data, int index, int value) {
+		put16(data, index, value);
+		put16(data, index + 2, value >>> 16);
 	}
 
 	private void bitUnpack() {
@@ -163,28 +488,154 @@ public class SWIHandler {
 	}
 
 	private void lz77UncompWram() {
-		// TODO Auto-generated method stub
-
+		lz77Uncomp(false);
 	}
 
 	private void lz77UncompVram() {
-		// TODO Auto-generated method stub
-
+		lz77Uncomp(true);
+	}
+
+	/**
+	 * LZ77 decompression from r0 to r1. The data is decompressed into a buffer which is stored
+	 * in one go. The VRAM version writes halfwords, so an even byte only reaches memory (and can
+	 * only be referenced) once the odd byte after it is known, just like in the BIOS.
+	 */
+	private void lz77Uncomp(boolean vram) {
+		setSource(cpu.getLowReg(0));
+		int dst = cpu.getLowReg(1);
+		int size = source32() >>> 8; //Bit 4-7 compression type, bit 8-31 decompressed size
+		byte[] out = new byte[(vram) ? (size + 1) & ~0x1 : size];
+		if (vram)
+			cpu.memory.read(dst, out, 0, out.length); //Unwritten halfwords keep their old value
+
+		int pending = 0; //VRAM: even byte waiting for its odd half
+		int d = 0;
+		while (d < size) {
+			int flags = source8();
+			for (int block = 0; block < 8 && d < size; ++block, flags <<= 1) {
+				int count, disp;
+				if ((flags & 0x80) == 0) { //Uncompressed byte
+					count = 1;
+					disp = 0;
+				}
+				else { //Bit 4-7 count - 3, bit 0-3 and the next byte disp - 1
+					int b = source8();
+					count = (b >>> 4) + 3;
+					disp = (((b & 0xF) << 8) | source8()) + 1;
+				}
+				for (; count > 0 && d < size; --count, ++d) {
+					int val;
+					if (disp == 0)
+						val = source8();
+					else if (d - disp >= 0)
+						val = out[d - disp];
+					else
+						val = cpu.memory.read8(dst + d - disp);
+					if (!vram)
+						out[d] = (byte) val;
+					else if ((d & 0x1) == 0)
+						pending = val;
+					else {
+						out[d - 1] = (byte) pending;
+						out[d] = (byte) val;
+					}
+				}
+			}
+		}
+		store(dst, out, out.length, vram);
 	}
 
+	/**
+	 * Huffman decompression from r0 to r1, the output is written as words.
+	 */
 	private void huffUncomp() {
-		// TODO Auto-generated method stub
-
+		int src = cpu.getLowReg(0);
+		int dst = cpu.getLowReg(1);
+		setSource(src);
+		int header = source32();
+		int bits = header & 0xF; //4 or 8 bit data
+		int size = header >>> 8;
+		if (bits == 0) //Like mGBA
+			bits = 8;
+		if (bits == 1 || 32 % bits != 0) //Data would never fill a word, the loop below wouldn't end
+			return;
+
+		//Tree: (size / 2 - 1), then the nodes. Node bit 0-5 offset to the children, bit 6/7 child 1/0 is data
+		int treeBase = src + 5;
+		byte[] tree = new byte[(source8() << 1) + 1];
+		cpu.memory.read(treeBase, tree, 0, tree.length);
+		setSource(treeBase + tree.length);
+
+		byte[] out = new byte[(size + 3) & ~0x3];
+		int mask = (1 << bits) - 1;
+		int node = 0, word = 0, wordBits = 0;
+		int d = 0;
+		while (d < size) {
+			int stream = source32();
+			for (int i = 0; i < 32 && d < size; ++i, stream <<= 1) {
+				int val = tree[node] & 0xFF;
+				//Children are at (address of node & ~1) + offset * 2 + 2
+				int child = (((treeBase + node) & ~0x1) + ((val & 0x3F) << 1) + 2 - treeBase) + (stream >>> 31);
+				boolean data = (stream < 0) ? (val & 0x40) != 0 : (val & 0x80) != 0;
+				if (child >= tree.length) //Broken tree
+					child = 0;
+				if (!data) {
+					node = child;
+					continue;
+				}
+				word |= (tree[child] & mask) << wordBits;
+				wordBits += bits;
+				node = 0;
+				if (wordBits == 32) {
+					out[d] = (byte) word;
+					out[d + 1] = (byte) (word >>> 8);
+					out[d + 2] = (byte) (word >>> 16);
+					out[d + 3] = (byte) (word >>> 24);
+					d += 4;
+					word = wordBits = 0;
+				}
+			}
+		}
+		store(dst, out, out.length, true);
 	}
 
 	private void rlUncompWram() {
-		// TODO Auto-generated method stub
-
+		rlUncomp(false);
 	}
 
 	private void rlUncompVram() {
-		// TODO Auto-generated method stub
-
+		rlUncomp(true);
+	}
+
+	/**
+	 * Run length decompression from r0 to r1, the VRAM version writes halfwords.
+	 */
+	private void rlUncomp(boolean vram) {
+		setSource(cpu.getLowReg(0));
+		int dst = cpu.getLowReg(1);
+		int size = source32() >>> 8;
+		byte[] out = new byte[(vram) ? (size + 1) & ~0x1 : size];
+		if (vram)
+			cpu.memory.read(dst, out, 0, out.length);
+		boolean unfinished = vram && (size & 0x1) != 0; //The last halfword is never completed
+		byte last = (unfinished) ? out[size - 1] : 0;
+
+		int d = 0;
+		while (d < size) {
+			int flag = source8();
+			if ((flag & 0x80) == 0) { //Bit 0-6 length - 1 of uncompressed data
+				for (int count = (flag & 0x7F) + 1; count > 0 && d < size; --count)
+					out[d++] = (byte) source8();
+			}
+			else { //Bit 0-6 length - 3 of a repeated byte
+				int end = Math.min(d + (flag & 0x7F) + 3, size);
+				Arrays.fill(out, d, end, (byte) source8());
+				d = end;
+			}
+		}
+		if (unfinished)
+			out[size - 1] = last;
+		store(dst, out, out.length, vram);
 	}
 
 	private void diff8bitUnfilterWram() {
@@ -0,0 +1,262 @@
+package cpu;
+
+import java.util.Random;
+
+/**
+ * Checks the Div, DivArm, Sqrt, ArcTan and ArcTan2 BIOS calls against straightforward
+ * references, then times them. ArcTan and ArcTan2 also have to match a set of golden results
+ * exactly, and ArcTan2 is checked and timed both with and without the ArcTan table, which has
+ * to give exactly the same results as the polynomial.
+ * <p>
+ * Sqrt is checked around every perfect square and at random. --exhaustive checks all 2^32 inputs
+ * instead, which takes several minutes.
+ * <p>
+ * Usage: java cpu.SWIMathCheck [iterations] [--exhaustive]
+ *
+ * @author David Goldman
+ */
+public class SWIMathCheck {
+
+	private static final byte DIV = 0x6;
+	private static final byte DIV_ARM = 0x7;
+	private static final byte SQRT = 0x8;
+	private static final byte ARCTAN = 0x9;
+	private static final byte ARCTAN2 = 0xA;
+
+	/*
+	 * Largest differences allowed from Math.atan/atan2. The BIOS polynomial is only accurate to a
+	 * few units of its fixed point results.
+	 */
+	private static final int ARCTAN_ERROR = 4; //In 1/0x8000 of PI
+	private static final int ARCTAN2_ERROR = 8; //In 1/0x10000 of 2PI
+
+	/*
+	 * Golden ArcTan results: r0 in, then r0, r1 and r3 out. These were generated from a C
+	 * transcription of _ArcTan in mGBA's bios.c (which returns an int16_t), not captured from
+	 * hardware. Only the documented input range [-0x4000, 0x4000] is covered.
+	 */
+	private static final int[][] ARCTAN_GOLDEN = {
+		{ 0x0, 0x0, 0x0, 0xA2F9 },
+		{ 0x1, 0x0, 0x0, 0xA2F9 },
+		{ 0xFFFFFFFF, 0xFFFFFFFF, 0x0, 0xA2F9 },
+		{ 0x100, 0xA2, 0xFFFFFFFC, 0xA2F5 },
+		{ 0xFFFFFF00, 0xFFFFFF5D, 0xFFFFFFFC, 0xA2F5 },
+		{ 0x555, 0x362, 0xFFFFFF8F, 0xA299 },
+		{ 0x800, 0x511, 0xFFFFFF00, 0xA221 },
+		{ 0x1000, 0x9FB, 0xFFFFFC00, 0x9FB3 },
+		{ 0xFFFFF000, 0xFFFFF604, 0xFFFFFC00, 0x9FB3 },
+		{ 0x1234, 0xB4A, 0xFFFFFAD3, 0x9EC7 },
+		{ 0x2000, 0x12E4, 0xFFFFF000, 0x9720 },
+		{ 0xFFFFE000, 0xFFFFED1C, 0xFFFFF000, 0x9720 },
+		{ 0xFFFFD544, 0xFFFFE803, 0xFFFFE378, 0x8FB2 },
+		{ 0x2D41, 0x1913, 0xFFFFE001, 0x8DDB },
+		{ 0x3000, 0x1A37, 0xFFFFDC00, 0x8BD4 },
+		{ 0xFFFFD000, 0xFFFFE5C8, 0xFFFFDC00, 0x8BD4 },
+		{ 0x3FFF, 0x1FFF, 0xFFFFC002, 0x8001 },
+		{ 0xFFFFC001, 0xFFFFE000, 0xFFFFC002, 0x8001 },
+		{ 0x4000, 0x2000, 0xFFFFC000, 0x8000 },
+		{ 0xFFFFC000, 0xFFFFE000, 0xFFFFC000, 0x8000 },
+	};
+
+	/*
+	 * Golden ArcTan2 results: x and y in, then r0 and r1 out (r3 is always 0x170). Generated from
+	 * the same transcription of _ArcTan2, with r0 cast to uint16_t like mGBA's SWI handler. r1 is
+	 * left alone (y) when x or y is 0.
+	 */
+	private static final int[][] ARCTAN2_GOLDEN = {
+		{ 0x0, 0x0, 0x0, 0x0 },
+		{ 0x1, 0x0, 0x0, 0x0 },
+		{ 0xFFFFFFFF, 0x0, 0x8000, 0x0 },
+		{ 0x0, 0x1, 0x4000, 0x1 },
+		{ 0x0, 0xFFFFFFFF, 0xC000, 0xFFFFFFFF },
+		{ 0x4000, 0x4000, 0x2000, 0xFFFFC000 },
+		{ 0xFFFFC000, 0x4000, 0x6000, 0xFFFFC000 },
+		{ 0xFFFFC000, 0xFFFFC000, 0xA000, 0xFFFFC000 },
+		{ 0x4000, 0xFFFFC000, 0xE000, 0xFFFFC000 },
+		{ 0x1000, 0x100, 0x28B, 0xFFFFFFC0 },
+		{ 0x100, 0x1000, 0x3D75, 0xFFFFFFC0 },
+		{ 0xFFFFFF00, 0x1000, 0x428C, 0xFFFFFFC0 },
+		{ 0xFFFFF000, 0x100, 0x7D74, 0xFFFFFFC0 },
+		{ 0xFFFFF000, 0xFFFFFF00, 0x828B, 0xFFFFFFC0 },
+		{ 0xFFFFFF00, 0xFFFFF000, 0xBD75, 0xFFFFFFC0 },
+		{ 0x100, 0xFFFFF000, 0xC28C, 0xFFFFFFC0 },
+		{ 0x1000, 0xFFFFFF00, 0xFD74, 0xFFFFFFC0 },
+		{ 0x7FFF, 0x1, 0x0, 0x0 },
+		{ 0x1, 0x7FFF, 0x4000, 0x0 },
+		{ 0xFFFF8000, 0x1, 0x8000, 0x0 },
+		{ 0xFFFF8000, 0xFFFFFFFF, 0x8000, 0x0 },
+		{ 0x1, 0xFFFF8000, 0xC000, 0x0 },
+		{ 0x7FFF, 0xFFFF8000, 0xE000, 0xFFFFC002 },
+		{ 0xFFFF8000, 0x7FFF, 0x6000, 0xFFFFC002 },
+		{ 0x1234, 0x5678, 0x378C, 0xFFFFFD2A },
+		{ 0xFFFFA988, 0x1234, 0x778B, 0xFFFFFD2A },
+		{ 0x3FF, 0xFFFFFC02, 0xE005, 0xFFFFC022 },
+		{ 0xFFFFFC02, 0xFFFFFC01, 0xA006, 0xFFFFC022 },
+		{ 0x64, 0xFFFFFF9C, 0xE000, 0xFFFFC000 },
+		{ 0xFFFFFF9C, 0xFFFFFF9D, 0x9FCB, 0xFFFFC147 },
+	};
+
+	private static final CPU cpu = new CPU();
+	private static int failures;
+
+	private static int call(byte swi, int r0, int r1) {
+		cpu.setLowReg(0, r0);
+		cpu.setLowReg(1, r1);
+		cpu.softwareInterrupt(swi);
+		return cpu.getLowReg(0);
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok && failures++ < 20)
+			System.out.println(message);
+	}
+
+	private static void checkDiv(int numer, int denom) {
+		if (denom == 0)
+			return;
+		int quotient = call(DIV, numer, denom);
+		int remainder = cpu.getLowReg(1);
+		int abs = cpu.getLowReg(3);
+		check(quotient == numer / denom && remainder == numer % denom && abs == Math.abs(numer / denom),
+				"Div " + numer + " / " + denom + " = " + quotient + " r " + remainder + " abs " + abs);
+		check(call(DIV_ARM, denom, numer) == quotient && cpu.getLowReg(1) == remainder && cpu.getLowReg(3) == abs,
+				"DivArm " + numer + " / " + denom + " differs from Div");
+	}
+
+	private static void checkSqrt(int value) {
+		long unsigned = value & 0xFFFFFFFFL;
+		long root = call(SQRT, value, 0) & 0xFFFFFFFFL;
+		check(root * root <= unsigned && (root + 1) * (root + 1) > unsigned, "Sqrt " + unsigned + " = " + root);
+	}
+
+	private static void checkArcTanGolden(int[] golden) {
+		int angle = call(ARCTAN, golden[0], 0);
+		check(angle == golden[1] && cpu.getLowReg(1) == golden[2] && cpu.getLowReg(3) == golden[3],
+				"ArcTan " + Integer.toHexString(golden[0]) + " = " + Integer.toHexString(angle) + ", r1 " +
+				Integer.toHexString(cpu.getLowReg(1)) + ", r3 " + Integer.toHexString(cpu.getLowReg(3)));
+	}
+
+	private static void checkArcTan2Golden(int[] golden, boolean table) {
+		cpu.setArcTanTable(table);
+		int angle = call(ARCTAN2, golden[0], golden[1]);
+		check(angle == golden[2] && cpu.getLowReg(1) == golden[3] && cpu.getLowReg(3) == 0x170,
+				"ArcTan2 " + Integer.toHexString(golden[0]) + ", " + Integer.toHexString(golden[1]) + " = " +
+				Integer.toHexString(angle) + ", r1 " + Integer.toHexString(cpu.getLowReg(1)) + ", r3 " +
+				Integer.toHexString(cpu.getLowReg(3)) + ((table) ? " (table)" : ""));
+	}
+
+	private static void checkArcTan(int tan) {
+		int angle = call(ARCTAN, tan, 0);
+		int expected = (int) Math.round(Math.atan(tan / (double) 0x4000) * 0x8000 / Math.PI);
+		check(Math.abs(angle - expected) <= ARCTAN_ERROR, "ArcTan " + tan + " = " + angle + ", expected " + expected);
+	}
+
+	private static void checkArcTan2(int x, int y) {
+		cpu.setArcTanTable(false);
+		int angle = call(ARCTAN2, x, y);
+		int r1 = cpu.getLowReg(1);
+		cpu.setArcTanTable(true);
+		check(call(ARCTAN2, x, y) == angle && cpu.getLowReg(1) == r1, "ArcTan2 " + x + ", " + y + " table differs");
+
+		if (x == 0 && y == 0)
+			return;
+		int expected = (int) Math.round(Math.atan2(y, x) * 0x8000 / Math.PI) & 0xFFFF;
+		int error = Math.abs(angle - expected);
+		check(Math.min(error, 0x10000 - error) <= ARCTAN2_ERROR, "ArcTan2 " + x + ", " + y + " = " + angle + ", expected " + expected);
+	}
+
+	/**
+	 * @return ns per call of swi over the arguments
+	 */
+	private static double time(byte swi, int[] r0, int[] r1) {
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < 5; ++run) {
+			long start = System.nanoTime();
+			for (int i = 0; i < r0.length; ++i)
+				call(swi, r0[i], r1[i]);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best / (double) r0.length;
+	}
+
+	public static void main(String[] args) {
+		int iterations = 1000000;
+		boolean exhaustive = false;
+		for (String arg : args) {
+			if (arg.equals("--exhaustive"))
+				exhaustive = true;
+			else
+				iterations = Integer.parseInt(arg);
+		}
+		Random random = new Random(0);
+
+		int[] edges = { 0, 1, -1, 2, -2, 7, -7, 0x7FFFFFFF, 0x80000000, 0x80000001, 0xFFFF, 0x10000 };
+		for (int numer : edges)
+			for (int denom : edges)
+				checkDiv(numer, denom);
+		for (int i = 0; i < iterations; ++i) {
+			checkDiv(random.nextInt(), random.nextInt());
+			checkDiv(random.nextInt(), random.nextInt(0x100) - 0x80);
+		}
+
+		if (exhaustive) {
+			int value = 0;
+			do
+				checkSqrt(value);
+			while (++value != 0);
+		}
+		else {
+			for (int i = 0; i < 0x10000; ++i) { //Every perfect square up to 2^32 and its neighbours
+				int square = i * i;
+				checkSqrt(square - 1);
+				checkSqrt(square);
+				checkSqrt(square + 1);
+			}
+			checkSqrt(0xFFFFFFFF);
+			for (int i = 0; i < iterations; ++i)
+				checkSqrt(random.nextInt());
+		}
+
+		for (int[] golden : ARCTAN_GOLDEN)
+			checkArcTanGolden(golden);
+		for (int[] golden : ARCTAN2_GOLDEN) {
+			checkArcTan2Golden(golden, false);
+			checkArcTan2Golden(golden, true);
+		}
+
+		for (int tan = -0x4000; tan <= 0x4000; ++tan)
+			checkArcTan(tan);
+
+		for (int x = -0x8000; x < 0x8000; x += 0x7F)
+			for (int y = -0x8000; y < 0x8000; y += 0x83)
+				checkArcTan2(x, y);
+		for (int i = 0; i < iterations; ++i)
+			checkArcTan2((short) random.nextInt(), (short) random.nextInt());
+
+		System.out.println((failures == 0) ? "All results match" : failures + " failures");
+
+		int[] r0 = new int[iterations], r1 = new int[iterations];
+		for (int i = 0; i < iterations; ++i) {
+			r0[i] = random.nextInt();
+			r1[i] = random.nextInt() | 0x1;
+		}
+		System.out.printf("Div: %.1f ns%n", time(DIV, r0, r1));
+		System.out.printf("DivArm: %.1f ns%n", time(DIV_ARM, r1, r0));
+		System.out.printf("Sqrt: %.1f ns%n", time(SQRT, r0, r1));
+		for (int i = 0; i < iterations; ++i) {
+			r0[i] = random.nextInt(0x8001) - 0x4000;
+			r1[i] = (short) random.nextInt();
+		}
+		System.out.printf("ArcTan: %.1f ns%n", time(ARCTAN, r0, r1));
+		for (int i = 0; i < iterations; ++i)
+			r0[i] = (short) random.nextInt();
+		cpu.setArcTanTable(false);
+		System.out.printf("ArcTan2 (polynomial): %.1f ns%n", time(ARCTAN2, r0, r1));
+		cpu.setArcTanTable(true);
+		System.out.printf("ArcTan2 (table): %.1f ns%n", time(ARCTAN2, r0, r1));
+
+		if (failures != 0)
+			System.exit(1);
+	}
+
+}
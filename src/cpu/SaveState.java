@@ -0,0 +1,151 @@
+package cpu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+import utils.LoadException;
+
+/**
+ * Binary save states. A state is a header (MAGIC, VERSION and the length of the CPU state),
+ * the CPU state written by {@link CPU#save(ByteBuffer)} and the raw contents of the memory
+ * regions from {@link cores.Memory#regions()}, all little endian. The regions are written
+ * straight from (and read straight into) the memory arrays, with a single gather write (scatter
+ * read) when going through a channel.
+ * <p>
+ * The ROM and BIOS aren't part of the state, they have to be loaded first.
+ *
+ * @author David Goldman
+ */
+public class SaveState {
+
+	private static final int MAGIC = 0x53414247; //"GBAS"
+	private static final short VERSION = 4;
+	private static final int HEADER_LENGTH = 10;
+	private static final int MAX_STATE_LENGTH = 0x1000;
+
+	private SaveState() {
+	}
+
+	/**
+	 * @return The size of a save state of cpu in bytes, e.g. to allocate a buffer for {@link #save(CPU, ByteBuffer)}
+	 */
+	public static int size(CPU cpu) {
+		int size = HEADER_LENGTH + state(cpu).remaining();
+		for (ByteBuffer region : cpu.memory.regions())
+			size += region.remaining();
+		return size;
+	}
+
+	private static ByteBuffer state(CPU cpu) {
+		ByteBuffer state = ByteBuffer.allocate(HEADER_LENGTH + MAX_STATE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		state.position(HEADER_LENGTH);
+		cpu.save(state);
+		int length = state.position() - HEADER_LENGTH;
+		state.putInt(0, MAGIC).putShort(4, VERSION).putInt(6, length);
+		state.flip();
+		state.position(HEADER_LENGTH);
+		return state;
+	}
+
+	/**
+	 * Writes the state of cpu at the position of dst, which needs {@link #size(CPU)} bytes remaining.
+	 */
+	public static void save(CPU cpu, ByteBuffer dst) {
+		ByteBuffer out = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int start = out.position();
+		out.position(start + HEADER_LENGTH);
+		cpu.save(out);
+		out.putInt(start, MAGIC).putShort(start + 4, VERSION).putInt(start + 6, out.position() - start - HEADER_LENGTH);
+		for (ByteBuffer region : cpu.memory.regions())
+			out.put(region);
+		dst.position(out.position());
+	}
+
+	/**
+	 * Loads a state from the position of src into cpu.
+	 */
+	public static void load(CPU cpu, ByteBuffer src) throws LoadException {
+		ByteBuffer in = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int length = header(in);
+		ByteBuffer[] regions = cpu.memory.regions();
+		int total = length;
+		for (ByteBuffer region : regions)
+			total += region.remaining();
+		LoadException.assertion(in.remaining() >= total, "Save state is truncated!");
+
+		ByteBuffer state = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+		state.limit(length);
+		in.position(in.position() + length);
+		for (ByteBuffer region : regions) {
+			ByteBuffer slice = in.slice();
+			slice.limit(region.remaining());
+			region.put(slice);
+			in.position(in.position() + region.capacity());
+		}
+		cpu.memory.setAllDirty();
+		cpu.load(state);
+		src.position(in.position());
+	}
+
+	/**
+	 * Writes the state of cpu to channel with one gather write of the header and the memory regions.
+	 */
+	public static void save(CPU cpu, GatheringByteChannel channel) throws IOException {
+		ByteBuffer[] regions = cpu.memory.regions();
+		ByteBuffer[] buffers = new ByteBuffer[regions.length + 1];
+		buffers[0] = state(cpu);
+		buffers[0].position(0);
+		System.arraycopy(regions, 0, buffers, 1, regions.length);
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers)
+			remaining += buffer.remaining();
+		while (remaining > 0)
+			remaining -= channel.write(buffers);
+	}
+
+	/**
+	 * Loads a state from channel, the memory regions are read straight into memory (so a truncated
+	 * state leaves memory partly overwritten).
+	 */
+	public static void load(CPU cpu, ScatteringByteChannel channel) throws IOException, LoadException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, new ByteBuffer[] { header });
+		header.flip();
+		int length = header(header);
+		ByteBuffer state = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, new ByteBuffer[] { state });
+		state.flip();
+		readFully(channel, cpu.memory.regions());
+		cpu.memory.setAllDirty();
+		cpu.load(state);
+	}
+
+	/**
+	 * Checks the header at the position of in and skips it.
+	 *
+	 * @return The length of the CPU state that follows
+	 */
+	private static int header(ByteBuffer in) throws LoadException {
+		LoadException.assertion(in.remaining() >= HEADER_LENGTH, "Save state is truncated!");
+		LoadException.assertion(in.getInt() == MAGIC, "Not a save state!");
+		LoadException.assertion(in.getShort() == VERSION, "Unsupported save state version!");
+		int length = in.getInt();
+		LoadException.assertion(length >= 0 && length <= MAX_STATE_LENGTH, "Save state is corrupt!");
+		return length;
+	}
+
+	private static void readFully(ScatteringByteChannel channel, ByteBuffer[] buffers) throws IOException, LoadException {
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers)
+			remaining += buffer.remaining();
+		while (remaining > 0) {
+			long read = channel.read(buffers);
+			LoadException.assertion(read != -1, "Save state is truncated!");
+			remaining -= read;
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package cpu;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import cores.Memory;
+
+/**
+ * Incremental in-memory snapshots of a CPU. A snapshot holds the CPU state and every memory
+ * region as an array of Memory.DIRTY_PAGE_SIZE pages. Pages are copy on write: a snapshot
+ * shares the page arrays of the previous one and only copies the pages that Memory marked as
+ * dirty since then (and that actually changed), so a snapshot of a frame that touched a few
+ * pages costs a few KB. Every snapshot is complete, restoring one doesn't replay a chain.
+ * <p>
+ * Restoring only copies back the pages that differ from the current contents of memory.
+ *
+ * @author David Goldman
+ */
+public class Snapshots {
+
+	public static class Snapshot {
+		private final byte[] state;
+		private final byte[][][] pages; //[region][page]
+
+		/**
+		 * The number of pages this snapshot copied, the rest are shared with earlier snapshots.
+		 */
+		public final int copiedPages;
+
+		private Snapshot(byte[] state, byte[][][] pages, int copiedPages) {
+			this.state = state;
+			this.pages = pages;
+			this.copiedPages = copiedPages;
+		}
+	}
+
+	private static final int MAX_STATE_LENGTH = 0x1000;
+
+	private final CPU cpu;
+	private final ByteBuffer state = ByteBuffer.allocate(MAX_STATE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * The snapshot memory was last taken as or restored to, memory only differs from it in the dirty pages.
+	 */
+	private Snapshot base;
+
+	public Snapshots(CPU cpu) {
+		this.cpu = cpu;
+	}
+
+	public Snapshot take() {
+		state.clear();
+		cpu.save(state);
+		byte[] cpuState = Arrays.copyOf(state.array(), state.position());
+
+		ByteBuffer[] regions = cpu.memory.regions();
+		byte[][][] pages = new byte[regions.length][][];
+		int copied = 0;
+		for (int region = 0; region < regions.length; ++region) {
+			byte[] data = regions[region].array();
+			int[] dirty = cpu.memory.getDirtyPages(region);
+			byte[][] previous = (base != null) ? base.pages[region] : null;
+			pages[region] = (previous != null) ? previous.clone() : new byte[(data.length + Memory.DIRTY_PAGE_SIZE - 1) >>> Memory.DIRTY_PAGE_SHIFT][];
+			for (int word = 0; word < dirty.length; ++word) {
+				if (dirty[word] == 0 && previous != null)
+					continue;
+				for (int page = word << 5; page < pages[region].length && page < (word + 1) << 5; ++page) {
+					if (previous != null && (dirty[word] & (1 << page)) == 0)
+						continue;
+					int start = page << Memory.DIRTY_PAGE_SHIFT;
+					int end = Math.min(start + Memory.DIRTY_PAGE_SIZE, data.length);
+					if (previous != null && unchanged(previous[page], data, start, end))
+						continue; //e.g. the stack written back with the same values
+					pages[region][page] = Arrays.copyOfRange(data, start, end);
+					++copied;
+				}
+				dirty[word] = 0;
+			}
+		}
+		base = new Snapshot(cpuState, pages, copied);
+		return base;
+	}
+
+	private static boolean unchanged(byte[] page, byte[] data, int start, int end) {
+		for (int i = start; i < end; ++i)
+			if (page[i - start] != data[i])
+				return false;
+		return true;
+	}
+
+	public void restore(Snapshot snapshot) {
+		ByteBuffer[] regions = cpu.memory.regions();
+		for (int region = 0; region < regions.length; ++region) {
+			byte[] data = regions[region].array();
+			int[] dirty = cpu.memory.getDirtyPages(region);
+			byte[][] current = (base != null) ? base.pages[region] : null;
+			byte[][] pages = snapshot.pages[region];
+			for (int page = 0; page < pages.length; ++page) {
+				//Memory still holds the base page if it isn't dirty
+				if (current == null || current[page] != pages[page] || (dirty[page >>> 5] & (1 << page)) != 0)
+					System.arraycopy(pages[page], 0, data, page << Memory.DIRTY_PAGE_SHIFT, pages[page].length);
+			}
+			Arrays.fill(dirty, 0);
+		}
+		cpu.load(ByteBuffer.wrap(snapshot.state).order(ByteOrder.LITTLE_ENDIAN));
+		base = snapshot;
+	}
+
+}
@@ -1,5 +1,7 @@
 package cpu;
 
+import java.util.Arrays;
+
 import static cpu.THUMBALUOpCode.ADC;
 import static cpu.THUMBALUOpCode.AND;
 import static cpu.THUMBALUOpCode.ASR;
@@ -36,103 +38,520 @@ public class THUMBProcessor implements CPU.IProcessor {
 			cpu.setHighReg(reg, val);
 	}
 
-	@Override
-	public void execute(int pc) {
-		//TODO Get instruction
-		int instr = 0; //Actually a short (only use lower 16 bits)
-		cpu.execute = instr;
+	/*
+	 * Handler indices for the decode table. Each entry of DECODE_TABLE maps the
+	 * bits 15-6 of an instruction to one of these handlers.
+	 */
+	private static final byte LSL_IMM = 0;
+	private static final byte LSR_IMM = 1;
+	private static final byte ASR_IMM = 2;
+	private static final byte ADD_REG = 3;
+	private static final byte ADD_IMM3 = 4;
+	private static final byte SUB_REG = 5;
+	private static final byte SUB_IMM3 = 6;
+	private static final byte MOV_IMM8 = 7;
+	private static final byte CMP_IMM8 = 8;
+	private static final byte ADD_IMM8 = 9;
+	private static final byte SUB_IMM8 = 10;
+	private static final byte ALU_AND = 11;
+	private static final byte ALU_EOR = 12;
+	private static final byte ALU_LSL = 13;
+	private static final byte ALU_LSR = 14;
+	private static final byte ALU_ASR = 15;
+	private static final byte ALU_ADC = 16;
+	private static final byte ALU_SBC = 17;
+	private static final byte ALU_ROR = 18;
+	private static final byte ALU_TST = 19;
+	private static final byte ALU_NEG = 20;
+	private static final byte ALU_CMP = 21;
+	private static final byte ALU_CMN = 22;
+	private static final byte ALU_ORR = 23;
+	private static final byte ALU_MUL = 24;
+	private static final byte ALU_BIC = 25;
+	private static final byte ALU_MVN = 26;
+	private static final byte ADD_LH = 27;
+	private static final byte ADD_HL = 28;
+	private static final byte ADD_HH = 29;
+	private static final byte CMP_LH = 30;
+	private static final byte CMP_HL = 31;
+	private static final byte CMP_HH = 32;
+	private static final byte MOV_LH = 33;
+	private static final byte MOV_HL = 34;
+	private static final byte MOV_HH = 35;
+	private static final byte BRANCH_X_LOW = 36;
+	private static final byte BRANCH_X_HIGH = 37;
+	private static final byte ILLEGAL_ADD_LL = 38;
+	private static final byte ILLEGAL_CMP_LL = 39;
+	private static final byte ILLEGAL_MOV_LL = 40;
+	private static final byte ILLEGAL_BRANCH_X_HL = 41;
+	private static final byte ILLEGAL_BRANCH_X_HH = 42;
+	private static final byte PC_RELATIVE_LOAD = 43;
+	private static final byte STR = 44;
+	private static final byte STRB = 45;
+	private static final byte STRH = 46;
+	private static final byte LDSB = 47;
+	private static final byte LDR = 48;
+	private static final byte LDRB = 49;
+	private static final byte LDRH = 50;
+	private static final byte LDSH = 51;
+	private static final byte STR_IMM = 52;
+	private static final byte LDR_IMM = 53;
+	private static final byte STRB_IMM = 54;
+	private static final byte LDRB_IMM = 55;
+	private static final byte STRH_IMM = 56;
+	private static final byte LDRH_IMM = 57;
+	private static final byte SP_RELATIVE_STORE = 58;
+	private static final byte SP_RELATIVE_LOAD = 59;
+	private static final byte ADD_PC = 60;
+	private static final byte ADD_SP = 61;
+	private static final byte ADD_OFFSET_TO_SP = 62;
+	private static final byte PUSH_REGISTERS = 63;
+	private static final byte ILLEGAL_PUSH = 64;
+	private static final byte POP_REGISTERS = 65;
+	private static final byte ILLEGAL_POP = 66;
+	private static final byte STORE_MULT = 67;
+	private static final byte LOAD_MULT = 68;
+	private static final byte CONDITIONAL_BRANCH = 69;
+	private static final byte SOFTWARE_INTERRUPT = 70;
+	private static final byte UNCONDITIONAL_BRANCH = 71;
+	private static final byte UNDEFINED_1D = 72;
+	private static final byte LONG_BRANCH = 73;
+	private static final byte BRANCH_WITH_LINK = 74;
+
+	/**
+	 * Map from bits 15-6 of an instruction to the handler for that instruction.
+	 * Bits 5-0 only ever hold operands, so they are not part of the index.
+	 */
+	private static final byte[] DECODE_TABLE = new byte[0x400];
 
+	static {
+		for (int i = 0; i < DECODE_TABLE.length; ++i)
+			DECODE_TABLE[i] = decode(i << 6);
+	}
+
+	/**
+	 * Decodes an instruction using only bits 15-6. Used once to build the decode table.
+	 */
+	private static byte decode(int instr) {
 		byte bit15_to_11 = (byte)(instr >>> 11);
 
 		//From 0x0 to 0x1F (0-31)
 		switch(bit15_to_11) {
-		case 0x0: lslImm(instr); break; 
-		case 0x1: lsrImm(instr); break;
-		case 0x2: asrImm(instr); break;
+		case 0x0: return LSL_IMM; 
+		case 0x1: return LSR_IMM;
+		case 0x2: return ASR_IMM;
 		case 0x3: /*Add or Sub*/
 			if ((instr & 0x200) == 0) /*Bit 9 CLEAR*/
-				if ((instr & 0x400) == 0) /*Bit 10 CLEAR*/
-					addReg(instr);
-				else
-					addImm3(instr);
+				return ((instr & 0x400) == 0) ? ADD_REG : ADD_IMM3; /*Bit 10 CLEAR*/
 			else
-				if ((instr & 0x400) == 0) /*Bit 10 CLEAR*/
-					subReg(instr);
-				else
-					subImm3(instr);
-			break;
-		case 0x4: movImm8(instr); break;
-		case 0x5: cmpImm8(instr); break;
-		case 0x6: addImm8(instr); break;
-		case 0x7: subImm8(instr); break;
+				return ((instr & 0x400) == 0) ? SUB_REG : SUB_IMM3; /*Bit 10 CLEAR*/
+		case 0x4: return MOV_IMM8;
+		case 0x5: return CMP_IMM8;
+		case 0x6: return ADD_IMM8;
+		case 0x7: return SUB_IMM8;
 		case 0x8:
 			if ((instr & 0x400) == 0) /*Bit 10 CLEAR*/
-				aluOp(instr); 
+				return decodeALUOp(instr); 
 			else
-				hiRegOpsBranchX(instr);
-			break;
-		case 0x9: pcRelativeLoad(instr); break;
+				return decodeHiRegOpsBranchX(instr);
+		case 0x9: return PC_RELATIVE_LOAD;
 		case 0xA: /*Bit 11 CLEAR*/
 			if ((instr & 0x200) == 0)/*Bit 9 CLEAR, Store register offset*/
-				if ((instr & 0x400) == 0) /*Bit 10 CLEAR - B*/
-					str(instr);
-				else
-					strb(instr);
+				return ((instr & 0x400) == 0) ? STR : STRB; /*Bit 10 CLEAR - B*/
 			else
-				if ((instr & 0x400) == 0) /*Bit 10 CLEAR - S*/
-					strh(instr);
-				else
-					ldsb(instr);
-			break;
+				return ((instr & 0x400) == 0) ? STRH : LDSB; /*Bit 10 CLEAR - S*/
 		case 0xB: /*Bit 11 SET*/
 			if ((instr & 0x200) == 0)/*Bit 9 CLEAR, Load register offset*/
-				if ((instr & 0x400) == 0) /*Bit 10 CLEAR*/
-					ldr(instr);
-				else 
-					ldrb(instr);
+				return ((instr & 0x400) == 0) ? LDR : LDRB; /*Bit 10 CLEAR*/
 			else
-				if ((instr & 0x400) == 0) /*Bit 10 CLEAR - S*/
-					ldrh(instr);
-				else
-					ldsh(instr);
-			break;
-		case 0xC: strImm(instr); break;
-		case 0xD: ldrImm(instr); break;
-		case 0xE: strbImm(instr); break;
-		case 0xF: ldrbImm(instr); break;
-		case 0x10: strhImm(instr); break;
-		case 0x11: ldrhImm(instr); break;
-		case 0x12: spRelativeStore(instr); break;
-		case 0x13: spRelativeLoad(instr); break;
-		case 0x14: addPC(instr); break;
-		case 0x15: addSP(instr); break;
+				return ((instr & 0x400) == 0) ? LDRH : LDSH; /*Bit 10 CLEAR - S*/
+		case 0xC: return STR_IMM;
+		case 0xD: return LDR_IMM;
+		case 0xE: return STRB_IMM;
+		case 0xF: return LDRB_IMM;
+		case 0x10: return STRH_IMM;
+		case 0x11: return LDRH_IMM;
+		case 0x12: return SP_RELATIVE_STORE;
+		case 0x13: return SP_RELATIVE_LOAD;
+		case 0x14: return ADD_PC;
+		case 0x15: return ADD_SP;
 		case 0x16:
 			if ((instr & 0x700) == 0) /*Bit 10-8 CLEAR*/
-				addOffsetToSP(instr); 
+				return ADD_OFFSET_TO_SP; 
 			else if ((instr & 0x600) == 0x400) /*Bit 10 SET, Bit 9 CLEAR*/
-				pushRegisters(instr); 
+				return PUSH_REGISTERS; 
 			else
-				cpu.undefinedInstr("Illegal variation of offset stack pointer/push register");
-			break;
+				return ILLEGAL_PUSH;
 		case 0x17:
 			if ((instr & 0x600) == 0x400) /*Bit 10 SET, Bit 9 CLEAR*/
-				popRegisters(instr); 
+				return POP_REGISTERS; 
 			else 
-				cpu.undefinedInstr("Illegal variation of pop registers");
-			break;
-		case 0x18: storeMult(instr); break;
-		case 0x19: loadMult(instr); break;
-		case 0x1A: conditionalBranch(instr); break;
-		case 0x1B:
-			if ((instr & 0xF00) == 0xF00)
-				softwareInterrupt(instr);
-			else
-				conditionalBranch(instr);
+				return ILLEGAL_POP;
+		case 0x18: return STORE_MULT;
+		case 0x19: return LOAD_MULT;
+		case 0x1A: return CONDITIONAL_BRANCH;
+		case 0x1B: return ((instr & 0xF00) == 0xF00) ? SOFTWARE_INTERRUPT : CONDITIONAL_BRANCH;
+		case 0x1C: return UNCONDITIONAL_BRANCH;
+		case 0x1D: return UNDEFINED_1D; 
+		case 0x1E: return LONG_BRANCH;
+		default: return BRANCH_WITH_LINK;
+		}
+	}
+
+	private static byte decodeALUOp(int instr) {
+		byte op = (byte) ((instr >>> 6) & 0xF);
+		switch(op) {
+		case AND: return ALU_AND;
+		case EOR: return ALU_EOR;
+		case LSL: return ALU_LSL;
+		case LSR: return ALU_LSR;
+		case ASR: return ALU_ASR;
+		case ADC: return ALU_ADC;
+		case SBC: return ALU_SBC;
+		case ROR: return ALU_ROR;
+		case TST: return ALU_TST;
+		case NEG: return ALU_NEG;
+		case CMP: return ALU_CMP;
+		case CMN: return ALU_CMN;
+		case ORR: return ALU_ORR;
+		case MUL: return ALU_MUL;
+		case BIC: return ALU_BIC;
+		default: return ALU_MVN;
+		}
+	}
+
+	private static byte decodeHiRegOpsBranchX(int instr) {
+		byte op = (byte) ((instr >>> 8) & 0x3); //Bit 9,8
+		byte h1h2 = (byte) ((instr >>> 6) & 0x3);
+		switch(op) { 
+		case 0x0: 
+			switch(h1h2) {
+			case 0: return ILLEGAL_ADD_LL;
+			case 1: return ADD_LH;
+			case 2: return ADD_HL;
+			default: return ADD_HH;
+			}
+		case 0x1: 
+			switch(h1h2) {
+			case 0: return ILLEGAL_CMP_LL;
+			case 1: return CMP_LH;
+			case 2: return CMP_HL;
+			default: return CMP_HH;
+			}
+		case 0x2: 
+			switch(h1h2) {
+			case 0: return ILLEGAL_MOV_LL;
+			case 1: return MOV_LH;
+			case 2: return MOV_HL;
+			default: return MOV_HH;
+			}
+		default: 
+			switch(h1h2) {
+			case 0: return BRANCH_X_LOW;
+			case 1: return BRANCH_X_HIGH;
+			case 2: return ILLEGAL_BRANCH_X_HL;
+			default: return ILLEGAL_BRANCH_X_HH;
+			}
+		}
+	}
+
+	@Override
+	public void execute(int pc) {
+		int instr = cpu.memory.read16(pc); //Actually a short (only use lower 16 bits)
+		cpu.wait.fetch16(pc + 4); //The pipeline fetches two instructions ahead
+		cpu.execute = instr;
+
+		dispatch(instr, DECODE_TABLE[(instr >>> 6) & 0x3FF]);
+	}
+
+	private static final int MAX_BLOCK_LENGTH = BlockCache.MAX_BLOCK_BYTES >>> 1;
+
+	/**
+	 * Fetches and decodes the basic block starting at pc. The block ends after the first
+	 * instruction that may write to the PC, or before the first undefined one (those stay in the
+	 * interpreter). A long branch is kept together with the branch with link following it, so
+	 * that the target of the pair is known. Like ARM blocks, the result is only decoded, not
+	 * compiled: execute(Block) still dispatches each instruction through its handler.
+	 *
+	 * @return The block, or null if the instruction at pc can't be cached
+	 */
+	protected Block decodeBlock(int pc) {
+		int[] instrs = new int[MAX_BLOCK_LENGTH];
+		byte[] handlers = new byte[MAX_BLOCK_LENGTH];
+		int length = 0;
+		while (length < MAX_BLOCK_LENGTH) {
+			int instr = cpu.memory.read16(pc + (length << 1)); //Not a timed access
+			byte handler = DECODE_TABLE[(instr >>> 6) & 0x3FF];
+			if (!cacheable(handler))
+				break;
+			instrs[length] = instr;
+			handlers[length++] = handler;
+			if (endsBlock(instr, handler))
+				break;
+		}
+		if (length == 0)
+			return null;
+
+		int end = pc + (length << 1);
+		int last = instrs[length - 1];
+		int target = end;
+		switch(handlers[length - 1]) {
+		case CONDITIONAL_BRANCH: target = conditionalBranchTarget(end + 2, last); break;
+		case UNCONDITIONAL_BRANCH: target = unconditionalBranchTarget(end + 2, last); break;
+		case BRANCH_WITH_LINK:
+			if (length >= 2 && handlers[length - 2] == LONG_BRANCH)
+				target = (longBranchHigh(end, instrs[length - 2]) + ((last & 0x7FF) << 1)) & 0xFFFFFFFE;
 			break;
-		case 0x1C: unconditionalBranch(instr); break;
-		case 0x1D: cpu.undefinedInstr("THUMB 0x1D... is undefined"); break; 
-		case 0x1E: longBranch(instr); break;
-		case 0x1F: branchWithLink(instr); break;
+		}
+		Block block = new Block(true, pc, end, target, Arrays.copyOf(instrs, length), Arrays.copyOf(handlers, length));
+		block.idle = idleLoop(block);
+		return block;
+	}
+
+	/*
+	 * Flags set by an instruction, see idleLoop()
+	 */
+	private static final byte FLAGS_NONE = 0;
+	private static final byte FLAGS_NZ = 1;
+	private static final byte FLAGS_NZCV = 2;
+
+	/**
+	 * Whether block is a polling loop: it branches back to its start, reads at most one address,
+	 * and every pass computes its registers and flags from scratch (nothing is carried from the
+	 * previous pass). Until something else changes memory, another pass changes nothing.
+	 */
+	private static boolean idleLoop(Block block) {
+		if (block.target != block.start)
+			return false;
+		int[] instrs = block.instrs;
+		byte[] handlers = block.handlers;
+		int length = instrs.length;
+
+		int loopWrites = 0;
+		for (int i = 0; i < length - 1; ++i) {
+			if (loopReads(instrs[i], handlers[i]) == -1)
+				return false;
+			loopWrites |= loopWrites(instrs[i], handlers[i]);
+		}
+
+		int written = 0, loads = 0;
+		byte flags = FLAGS_NONE;
+		for (int i = 0; i < length - 1; ++i) {
+			int instr = instrs[i];
+			byte handler = handlers[i];
+			if ((loopReads(instr, handler) & loopWrites & ~written) != 0) //Value from the previous pass
+				return false;
+			written |= loopWrites(instr, handler);
+			if (loopLoads(handler) && ++loads > 1)
+				return false;
+			byte set = loopFlags(handler);
+			if (set != FLAGS_NONE)
+				flags = set;
+		}
+
+		int branch = instrs[length - 1];
+		switch(handlers[length - 1]) {
+		case UNCONDITIONAL_BRANCH: return true;
+		case CONDITIONAL_BRANCH: {
+			byte cond = (byte) ((branch >>> 8) & 0xF);
+			return flags == FLAGS_NZCV || (flags == FLAGS_NZ && Condition.onlyNZ(cond));
+		}
+		default: return false;
+		}
+	}
+
+	/**
+	 * @return The registers read by an instruction allowed in an idle loop, -1 if it isn't allowed
+	 */
+	private static int loopReads(int instr, byte handler) {
+		int rd = 1 << (instr & 0x7);
+		int rs = 1 << ((instr >>> 3) & 0x7);
+		int rn = 1 << ((instr >>> 6) & 0x7);
+		switch(handler) {
+		case LSL_IMM: case LSR_IMM: case ASR_IMM: case ADD_IMM3: case SUB_IMM3:
+		case ALU_NEG: case ALU_MVN: case LDR_IMM: case LDRB_IMM: case LDRH_IMM:
+			return rs;
+		case ADD_REG: case SUB_REG: case LDR: case LDRB: case LDRH: case LDSB: case LDSH:
+			return rs | rn;
+		case CMP_IMM8: case ADD_IMM8: case SUB_IMM8:
+			return 1 << ((instr >>> 8) & 0x7);
+		case ALU_AND: case ALU_EOR: case ALU_LSL: case ALU_LSR: case ALU_ASR: case ALU_ROR:
+		case ALU_TST: case ALU_CMP: case ALU_CMN: case ALU_ORR: case ALU_MUL: case ALU_BIC:
+			return rd | rs;
+		case CMP_LH: return rd | (rs << 8);
+		case CMP_HL: return (rd << 8) | rs;
+		case CMP_HH: return (rd << 8) | (rs << 8);
+		case MOV_LH: return rs << 8;
+		case SP_RELATIVE_LOAD: case ADD_SP: return 1 << 13;
+		case MOV_IMM8: case PC_RELATIVE_LOAD: case ADD_PC: return 0; //The PC is the same every pass
+		default: return -1;
+		}
+	}
+
+	private static int loopWrites(int instr, byte handler) {
+		switch(handler) {
+		case MOV_IMM8: case ADD_IMM8: case SUB_IMM8: case PC_RELATIVE_LOAD: case SP_RELATIVE_LOAD:
+		case ADD_PC: case ADD_SP:
+			return 1 << ((instr >>> 8) & 0x7);
+		case CMP_IMM8: case ALU_TST: case ALU_CMP: case ALU_CMN: case CMP_LH: case CMP_HL: case CMP_HH:
+			return 0;
+		default:
+			return 1 << (instr & 0x7);
+		}
+	}
+
+	private static boolean loopLoads(byte handler) {
+		switch(handler) {
+		case LDR: case LDRB: case LDRH: case LDSB: case LDSH: case LDR_IMM: case LDRB_IMM: case LDRH_IMM:
+		case PC_RELATIVE_LOAD: case SP_RELATIVE_LOAD:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static byte loopFlags(byte handler) {
+		switch(handler) {
+		case ADD_REG: case SUB_REG: case ADD_IMM3: case SUB_IMM3: case CMP_IMM8: case ADD_IMM8: case SUB_IMM8:
+		case ALU_NEG: case ALU_CMP: case ALU_CMN: case CMP_LH: case CMP_HL: case CMP_HH:
+			return FLAGS_NZCV;
+		case LSL_IMM: case LSR_IMM: case ASR_IMM: case MOV_IMM8: case ALU_AND: case ALU_EOR: case ALU_LSL:
+		case ALU_LSR: case ALU_ASR: case ALU_ROR: case ALU_TST: case ALU_ORR: case ALU_MUL: case ALU_BIC: case ALU_MVN:
+			return FLAGS_NZ; //Shifts may leave C alone
+		default:
+			return FLAGS_NONE;
+		}
+	}
+
+	private static boolean cacheable(byte handler) {
+		switch(handler) {
+		case ILLEGAL_ADD_LL: case ILLEGAL_CMP_LL: case ILLEGAL_MOV_LL: case ILLEGAL_BRANCH_X_HL: case ILLEGAL_BRANCH_X_HH:
+		case ILLEGAL_PUSH: case ILLEGAL_POP: case UNDEFINED_1D:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Whether the instruction may branch.
+	 */
+	private static boolean endsBlock(int instr, byte handler) {
+		switch(handler) {
+		case BRANCH_X_LOW: case BRANCH_X_HIGH: case CONDITIONAL_BRANCH: case UNCONDITIONAL_BRANCH:
+		case BRANCH_WITH_LINK: case SOFTWARE_INTERRUPT:
+			return true;
+		case ADD_HL: case ADD_HH: case MOV_HL: case MOV_HH:
+			return (instr & 0x7) == 0x7; //Hd is r15
+		case POP_REGISTERS:
+			return (instr & 0x100) == 0x100; //Loads the PC
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Runs a cached block, leaving the CPU at the first instruction that wasn't executed.
+	 * Stops early if an instruction branches or invalidates the block.
+	 */
+	protected void execute(Block block) {
+		int[] instrs = block.instrs;
+		byte[] handlers = block.handlers;
+		int pc = block.start;
+		for (int i = 0; i < instrs.length; ++i) {
+			int instr = instrs[i];
+			cpu.pc = pc;
+			cpu.setReg(15, pc + 4);
+			cpu.wait.fetch16(pc + 4);
+			cpu.execute = instr;
+			dispatch(instr, handlers[i]);
+			if (cpu.branched)
+				return;
+			pc += 2;
+			if (!block.valid) //Overwrote itself, the rest has to be fetched again
+				break;
+		}
+		cpu.pc = pc;
+	}
+
+	private void dispatch(int instr, byte handler) {
+		//rs = instr >>> 3, rd = instr (& 0x7)
+		switch(handler) {
+		case LSL_IMM: lslImm(instr); break; 
+		case LSR_IMM: lsrImm(instr); break;
+		case ASR_IMM: asrImm(instr); break;
+		case ADD_REG: addReg(instr); break;
+		case ADD_IMM3: addImm3(instr); break;
+		case SUB_REG: subReg(instr); break;
+		case SUB_IMM3: subImm3(instr); break;
+		case MOV_IMM8: movImm8(instr); break;
+		case CMP_IMM8: cmpImm8(instr); break;
+		case ADD_IMM8: addImm8(instr); break;
+		case SUB_IMM8: subImm8(instr); break;
+		case ALU_AND: and(instr, instr >>> 3); break;
+		case ALU_EOR: eor(instr, instr >>> 3); break;
+		case ALU_LSL: lsl(instr, instr >>> 3); break;
+		case ALU_LSR: lsr(instr, instr >>> 3); break;
+		case ALU_ASR: asr(instr, instr >>> 3); break;
+		case ALU_ADC: adc(instr, instr >>> 3); break;
+		case ALU_SBC: sbc(instr, instr >>> 3); break;
+		case ALU_ROR: ror(instr, instr >>> 3); break;
+		case ALU_TST: tst(instr, instr >>> 3); break;
+		case ALU_NEG: neg(instr, instr >>> 3); break;
+		case ALU_CMP: cmp(instr, instr >>> 3); break;
+		case ALU_CMN: cmn(instr, instr >>> 3); break;
+		case ALU_ORR: orr(instr, instr >>> 3); break;
+		case ALU_MUL: mul(instr, instr >>> 3); break;
+		case ALU_BIC: bic(instr, instr >>> 3); break;
+		case ALU_MVN: mvn(instr, instr >>> 3); break;
+		case ADD_LH: addLH(instr, instr >>> 3); break;
+		case ADD_HL: addHL(instr, instr >>> 3); break;
+		case ADD_HH: addHH(instr, instr >>> 3); break;
+		case CMP_LH: cmpLH(instr, instr >>> 3); break;
+		case CMP_HL: cmpHL(instr, instr >>> 3); break;
+		case CMP_HH: cmpHH(instr, instr >>> 3); break;
+		case MOV_LH: movLH(instr, instr >>> 3); break;
+		case MOV_HL: movHL(instr, instr >>> 3); break;
+		case MOV_HH: movHH(instr, instr >>> 3); break;
+		case BRANCH_X_LOW: branchXLow(instr >>> 3); break;
+		case BRANCH_X_HIGH: branchXHigh(instr >>> 3); break;
+		case ILLEGAL_ADD_LL: cpu.undefinedInstr("Add low-low is undefined"); break;
+		case ILLEGAL_CMP_LL: cpu.undefinedInstr("Cmp low-low is undefined"); break;
+		case ILLEGAL_MOV_LL: cpu.undefinedInstr("Mov low-low is undefined"); break;
+		case ILLEGAL_BRANCH_X_HL: cpu.undefinedInstr("BranchX high-low is undefined"); break;
+		case ILLEGAL_BRANCH_X_HH: cpu.undefinedInstr("BranchX high-high is undefined"); break;
+		case PC_RELATIVE_LOAD: pcRelativeLoad(instr); break;
+		case STR: str(instr); break;
+		case STRB: strb(instr); break;
+		case STRH: strh(instr); break;
+		case LDSB: ldsb(instr); break;
+		case LDR: ldr(instr); break;
+		case LDRB: ldrb(instr); break;
+		case LDRH: ldrh(instr); break;
+		case LDSH: ldsh(instr); break;
+		case STR_IMM: strImm(instr); break;
+		case LDR_IMM: ldrImm(instr); break;
+		case STRB_IMM: strbImm(instr); break;
+		case LDRB_IMM: ldrbImm(instr); break;
+		case STRH_IMM: strhImm(instr); break;
+		case LDRH_IMM: ldrhImm(instr); break;
+		case SP_RELATIVE_STORE: spRelativeStore(instr); break;
+		case SP_RELATIVE_LOAD: spRelativeLoad(instr); break;
+		case ADD_PC: addPC(instr); break;
+		case ADD_SP: addSP(instr); break;
+		case ADD_OFFSET_TO_SP: addOffsetToSP(instr); break;
+		case PUSH_REGISTERS: pushRegisters(instr); break;
+		case ILLEGAL_PUSH: cpu.undefinedInstr("Illegal variation of offset stack pointer/push register"); break;
+		case POP_REGISTERS: popRegisters(instr); break;
+		case ILLEGAL_POP: cpu.undefinedInstr("Illegal variation of pop registers"); break;
+		case STORE_MULT: storeMult(instr); break;
+		case LOAD_MULT: loadMult(instr); break;
+		case CONDITIONAL_BRANCH: conditionalBranch(instr); break;
+		case SOFTWARE_INTERRUPT: softwareInterrupt(instr); break;
+		case UNCONDITIONAL_BRANCH: unconditionalBranch(instr); break;
+		case UNDEFINED_1D: cpu.undefinedInstr("THUMB 0x1D... is undefined"); break; 
+		case LONG_BRANCH: longBranch(instr); break;
+		case BRANCH_WITH_LINK: branchWithLink(instr); break;
 		}
 	}
 
@@ -141,11 +560,10 @@ public class THUMBProcessor implements CPU.IProcessor {
 		int val = cpu.getLowReg(instr >>> 3);
 		if (offset5 != 0) { //Carry not affected by 0
 			//Carry set by the last bit shifted out (=sign of the value shifted one less)
-			cpu.cpsr.carry = ((val << (offset5-1)) < 0);
+			cpu.cpsr.setCarry((val << (offset5-1)) < 0);
 			val <<= offset5;
 		}
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(instr, val); //The method will & 0x7 for us
 	}
 
@@ -154,16 +572,15 @@ public class THUMBProcessor implements CPU.IProcessor {
 		int val = cpu.getLowReg(instr >>> 3);
 		if (offset5 != 0) {
 			//Carry set by the last bit shifted out (= 0 bit of the value shifted one less)
-			cpu.cpsr.carry = (((val >>> (offset5 - 1)) & 0x1) == 0x1);
+			cpu.cpsr.setCarry(((val >>> (offset5 - 1)) & 0x1) == 0x1);
 			val >>>= offset5;
 		}
 		else {
 			//This is actually LSR #32 (page 13 of ARM pdf), thus carry = sign bit, value becomes 0
-			cpu.cpsr.carry = (val < 0);
+			cpu.cpsr.setCarry(val < 0);
 			val = 0;
 		}
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(instr, val); //The method will & 0x7 for us
 	}
 
@@ -172,16 +589,15 @@ public class THUMBProcessor implements CPU.IProcessor {
 		int val = cpu.getLowReg(instr >>> 3);
 		if (offset5 != 0) {
 			//Carry set by the last bit shifted out (= 0 bit of the value shifted one less)
-			cpu.cpsr.carry = (((val >> (offset5 - 1)) & 0x1) == 0x1);
+			cpu.cpsr.setCarry(((val >> (offset5 - 1)) & 0x1) == 0x1);
 			val >>= offset5;
 		}
 		else {
 			//This is actually ASR #32 (page 13 of ARM pdf), thus carry = sign bit, value becomes either all 0's or all 1's
-			cpu.cpsr.carry = (val < 0);
+			cpu.cpsr.setCarry(val < 0);
 			val >>= 31;
 		}
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(instr, val); //The method will & 0x7 for us
 	}
 
@@ -215,8 +631,7 @@ public class THUMBProcessor implements CPU.IProcessor {
 
 	private void movImm8(int instr) {
 		int val = instr & 0xFF;
-		cpu.cpsr.negative = false;
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val); //val is never negative
 		//The method will & 0x7 for us
 		cpu.setLowReg(instr >>> 8, val);
 	}
@@ -238,36 +653,12 @@ public class THUMBProcessor implements CPU.IProcessor {
 		cpu.setLowReg(instr >>> 8, cpu.cpsr.setSubFlags(val, instr & 0xFF));
 	}
 
-	private void aluOp(int instr) {
-		byte op = (byte) ((instr >>> 6) & 0xF);
-		//rs = instr >>> 3, rd = instr (& 0x7)
-		switch(op) {
-		case AND: and(instr, instr >>> 3); break;
-		case EOR: eor(instr, instr >>> 3); break;
-		case LSL: lsl(instr, instr >>> 3); break;
-		case LSR: lsr(instr, instr >>> 3); break;
-		case ASR: asr(instr, instr >>> 3); break;
-		case ADC: adc(instr, instr >>> 3); break;
-		case SBC: sbc(instr, instr >>> 3); break;
-		case ROR: ror(instr, instr >>> 3); break;
-		case TST: tst(instr, instr >>> 3); break;
-		case NEG: neg(instr, instr >>> 3); break;
-		case CMP: cmp(instr, instr >>> 3); break;
-		case CMN: cmn(instr, instr >>> 3); break;
-		case ORR: orr(instr, instr >>> 3); break;
-		case MUL: mul(instr, instr >>> 3); break;
-		case BIC: bic(instr, instr >>> 3); break;
-		case MVN: mvn(instr, instr >>> 3); break;
-		}
-	}
-
 	/**
 	 * AND Rd, Rs (Rd = Rd & Rs)
 	 */
 	private void and(int rd, int rs) {
 		int val = cpu.getLowReg(rd) & cpu.getLowReg(rs);
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(rd, val);
 	}
 
@@ -276,8 +667,7 @@ public class THUMBProcessor implements CPU.IProcessor {
 	 */
 	private void eor(int rd, int rs) {
 		int val = cpu.getLowReg(rd) ^ cpu.getLowReg(rs);
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(rd, val);
 	}
 
@@ -289,20 +679,19 @@ public class THUMBProcessor implements CPU.IProcessor {
 		int shift = cpu.getLowReg(rs) & 0xFF; //Only the least significant byte is used to determine the shift
 		if (shift > 0) { //Carry not affected by 0 shift
 			if (shift < 32) { //Shifts <32 are fine, carry is the last bit shifted out
-				cpu.cpsr.carry = (val << (shift-1) < 0);
+				cpu.cpsr.setCarry(val << (shift-1) < 0);
 				val <<= shift;
 			}
 			else if (shift == 32) { //We do this manually b/c in Java, shifts are % #bits, carry is the 0 bit
-				cpu.cpsr.carry = ((val & 0x1) == 0x1); 
+				cpu.cpsr.setCarry((val & 0x1) == 0x1); 
 				val = 0;
 			}
 			else { //Shift >32, 0's!
-				cpu.cpsr.carry = false;
+				cpu.cpsr.setCarry(false);
 				val = 0;
 			}
 		}
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(rd, val);
 	}
 
@@ -315,20 +704,19 @@ public class THUMBProcessor implements CPU.IProcessor {
 		int shift = cpu.getLowReg(rs) & 0xFF; //Only the least significant byte is used to determine the shift
 		if (shift > 0) {
 			if (shift < 32) { //Shifts <32 are fine, carry is the last bit shifted out
-				cpu.cpsr.carry = (((val >>> (shift - 1)) & 0x1) == 0x1);
+				cpu.cpsr.setCarry(((val >>> (shift - 1)) & 0x1) == 0x1);
 				val >>>= shift;
 			}
 			else if (shift == 32) { //We do this manually b/c in Java, shifts are % #bits, carry is sign bit
-				cpu.cpsr.carry = (val < 0); 
+				cpu.cpsr.setCarry(val < 0); 
 				val = 0;
 			}
 			else { //Shift >32, 0's!
-				cpu.cpsr.carry = false;
+				cpu.cpsr.setCarry(false);
 				val = 0;
 			}
 		}
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(rd, val);
 	}
 
@@ -341,16 +729,15 @@ public class THUMBProcessor implements CPU.IProcessor {
 		int shift = cpu.getLowReg(rs) & 0xFF; //Only the least significant byte is used to determine the shift
 		if (shift > 0) {
 			if (shift < 32) { //Shifts <32 are fine, carry is the last bit shifted out
-				cpu.cpsr.carry = (((val >> (shift - 1)) & 0x1) == 0x1);
+				cpu.cpsr.setCarry(((val >> (shift - 1)) & 0x1) == 0x1);
 				val >>= shift;
 			}
 			else { //Shift >=32, carry is equal to the sign bit, value becomes either all 1's or 0's
-				cpu.cpsr.carry = (val < 0);
+				cpu.cpsr.setCarry(val < 0);
 				val >>= 31;
 			}
 		}
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(rd, val);
 	}
 
@@ -378,15 +765,14 @@ public class THUMBProcessor implements CPU.IProcessor {
 		if (rotate > 0) {
 			rotate = rotate & 0x1F; //If rotate >32, we subtract 32 until in range [0-31] -> same as & 0x1F (31)
 			if (rotate > 0) { //Carry is the last bit rotated out
-				cpu.cpsr.carry = (((val >>> (rotate - 1)) & 0x1) == 0x1);
+				cpu.cpsr.setCarry(((val >>> (rotate - 1)) & 0x1) == 0x1);
 				//Val is the remaining bits from the shift and the removed bits shifted to the left
 				val = (val >>> rotate) | (val << (32-rotate));
 			}
 			else //ROR 32, carry equal to sign bit
-				cpu.cpsr.carry = (val < 0);
+				cpu.cpsr.setCarry(val < 0);
 		}
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(rd, val);
 	}
 
@@ -395,8 +781,7 @@ public class THUMBProcessor implements CPU.IProcessor {
 	 */
 	private void tst(int rd, int rs) {
 		int val = cpu.getLowReg(rd) & cpu.getLowReg(rs);
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 	}
 
 	/**
@@ -407,10 +792,9 @@ public class THUMBProcessor implements CPU.IProcessor {
 		//Because of the two's complement system, 0 will overflow back to 0
 		//and Integer.MIN_VALUE will still be Integer.MIN_VALUE, which is marked as an overflow condition.
 		//Therefore, this is identical to cpu.cpsr.overflow = (val == -val);
-		cpu.cpsr.overflow = ((val ^ -val) == 0);
+		cpu.cpsr.setOverflow((val ^ -val) == 0);
 		val = -val;
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(rd, val);
 	}
 
@@ -433,8 +817,7 @@ public class THUMBProcessor implements CPU.IProcessor {
 	 */
 	private void orr(int rd, int rs) {
 		int val = cpu.getLowReg(rd) | cpu.getLowReg(rs);
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(rd, val);
 	}
 
@@ -444,9 +827,8 @@ public class THUMBProcessor implements CPU.IProcessor {
 	private void mul(int rd, int rs) {
 		cpu.wait.clockMUL(cpu.getLowReg(rs));
 		int val = cpu.getLowReg(rd) * cpu.getLowReg(rs);
-		cpu.cpsr.carry = false;
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setCarry(false);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(rd, val);
 	}
 
@@ -455,8 +837,7 @@ public class THUMBProcessor implements CPU.IProcessor {
 	 */
 	private void bic(int rd, int rs) {
 		int val = cpu.getLowReg(rd) & ~cpu.getLowReg(rs);
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(rd, val);
 	}
 
@@ -465,51 +846,10 @@ public class THUMBProcessor implements CPU.IProcessor {
 	 */
 	private void mvn(int rd, int rs) {
 		int val = ~cpu.getLowReg(rs);
-		cpu.cpsr.negative = (val < 0);
-		cpu.cpsr.zero = (val == 0);
+		cpu.cpsr.setNZ(val);
 		cpu.setLowReg(rd, val);
 	}
 
-	private void hiRegOpsBranchX(int instr) {
-		byte op = (byte) ((instr >>> 8) & 0x3); //Bit 9,8
-		//rs = instr >>> 3, rd = instr (& 0x7)
-		byte h1h2 = (byte) ((instr >>> 6) & 0x3);
-		switch(op) { 
-		case 0x0:
-			switch(h1h2) {
-			case 0: cpu.undefinedInstr("Add low-low is undefined"); break;
-			case 1: addLH(instr, instr >>> 3); break;
-			case 2: addHL(instr, instr >>> 3); break;
-			case 3: addHH(instr, instr >>> 3); break;
-			}
-			break;
-		case 0x1:
-			switch(h1h2) {
-			case 0: cpu.undefinedInstr("Cmp low-low is undefined"); break;
-			case 1: cmpLH(instr, instr >>> 3); break;
-			case 2: cmpHL(instr, instr >>> 3); break;
-			case 3: cmpHH(instr, instr >>> 3); break;
-			}
-			break;
-		case 0x2:
-			switch(h1h2) {
-			case 0: cpu.undefinedInstr("Mov low-low is undefined"); break;
-			case 1: movLH(instr, instr >>> 3); break;
-			case 2: movHL(instr, instr >>> 3); break;
-			case 3: movHH(instr, instr >>> 3); break;
-			}
-			break;
-		case 0x3:
-			switch(h1h2) {
-			case 0: branchXLow(instr >>> 3); break;
-			case 1: branchXHigh(instr >>> 3); break;
-			case 2: cpu.undefinedInstr("BranchX high-low is undefined"); break;
-			case 3: cpu.undefinedInstr("BranchX high-high is undefined"); break;
-			}
-			break;
-		}
-	}
-
 	private void addHH(int hd, int hs) {
 		setHighRegSafe(hd, cpu.cpsr.setAddFlags(cpu.getHighReg(hd), cpu.getHighReg(hs)));
 	}
@@ -781,7 +1121,7 @@ public class THUMBProcessor implements CPU.IProcessor {
 			cpu.undefinedInstr("Branch conditional-14 is undefined");
 		//8 bit offset is actually 9 bits
 		else if (Condition.condition(cond, cpu.cpsr))
-			cpu.branch(cpu.getPC() + ((instr & 0xFF) << 1));
+			cpu.branch(conditionalBranchTarget(cpu.getPC(), instr));
 	}
 
 	private void softwareInterrupt(int instr) {
@@ -789,14 +1129,27 @@ public class THUMBProcessor implements CPU.IProcessor {
 	}
 
 	private void unconditionalBranch(int instr) {
-		//11 bits are actually 12, halfword aligned
-		int offset = (instr & 0x7FF) << 1;
-		cpu.branch(cpu.getPC() + offset);
+		cpu.branch(unconditionalBranchTarget(cpu.getPC(), instr));
 	}
 
 	private void longBranch(int instr) {
 		//Bit 11 is clear - offset high - LR = PC + (Offset11 << 12)
-		cpu.setLR(cpu.getPC() + ((instr & 0x7FF) << 12));
+		cpu.setLR(longBranchHigh(cpu.getPC(), instr));
+	}
+
+	/*
+	 * Branch targets, shared with decodeBlock(). pc is r15 of the branch (its address + 4).
+	 */
+	private static int conditionalBranchTarget(int pc, int instr) {
+		return pc + ((instr << 24) >> 23); //8 bit offset is actually 9 bits, sign extended
+	}
+
+	private static int unconditionalBranchTarget(int pc, int instr) {
+		return pc + ((instr << 21) >> 20); //11 bits are actually 12, sign extended
+	}
+
+	private static int longBranchHigh(int pc, int instr) {
+		return pc + ((instr << 21) >> 9); //Sign extended offset high << 12
 	}
 
 	private void branchWithLink(int instr) {
@@ -4,8 +4,8 @@ import static utils.ByteUtils.string;
 import static utils.LoadException.assertion;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import utils.LoadException;
 
@@ -13,6 +13,10 @@ import utils.LoadException;
  * This class represents a game/ROM cartridge. Normally this will be read from
  * a file (see {@link #parse(File)}). This class verifies various checksums/assertions
  * according to the specifications found at GBATEK.
+ * <p>
+ * The ROM data is a read only ByteBuffer. A parsed file is memory mapped, so it isn't copied
+ * onto the heap and every instance running the same file shares the page cache copy. Parsed
+ * ROMs are also shared through the {@link ROMRegistry}, they have to be {@link #release()}d.
  * 
  * @author David Goldman
  * @see <a href="http://nocash.emubase.de/gbatek.htm">GBATEK</a>
@@ -43,57 +47,92 @@ public class CartridgeROM {
 		assertion(file.length() > HEADER_LENGTH, "File is too small!");
 		assertion(file.length() <= MAX_LENGTH, "File is too big!");
 
-		try(FileInputStream stream = (new FileInputStream(file))) {
-			byte[] rom = new byte[(int) file.length()];
-			stream.read(rom);
-			return new CartridgeROM(rom);
-		} catch (IOException e) {
-			throw new LoadException(e.getClass().getSimpleName() + ": " + e.getMessage());
-		}
+		return ROMRegistry.acquire(file);
 	}
 
-	public final byte[] rom;
+	/**
+	 * Read only, little endian.
+	 */
+	public final ByteBuffer rom;
 	public final String title, code, dev;
 	public final boolean debug;
 	public final byte hardware, type, ver, checksum;
 
+	private final byte[] header = new byte[HEADER_LENGTH + 1];
+
+	/*
+	 * Registry key and reference count, null and 0 if this ROM isn't shared
+	 */
+	ByteBuffer hash;
+	int references;
+
 	public CartridgeROM(byte[] rom) throws LoadException {
-		this.rom = rom;
-		this.title = string(rom, 0xA0, 0xab);
-		this.code = string(rom, 0xAC, 0xAF);
-		this.dev = string(rom, 0xB0, 0xB1);
-		this.hardware = rom[0xB3];
-		this.type = rom[0xB4];
-		this.ver = rom[0xBC];
-		this.checksum = rom[0xBD];
-		this.debug = rom[0x9C] == (byte)0xA3; /*(rom[0x9C] & 2) == 2 && (rom[0x9C] & 128) == 128*/
-
-		assertion(nintendo(), "Nintendo Logo Invalid!");
-		assertion(checksum(), "Checksum failed!");
+		this(ByteBuffer.wrap(rom));
+	}
+
+	public CartridgeROM(ByteBuffer rom) throws LoadException {
+		this(rom, true);
+	}
+
+	/**
+	 * @param validate False if the header was already checked with {@link #validate(byte[])}
+	 */
+	CartridgeROM(ByteBuffer rom, boolean validate) throws LoadException {
+		assertion(rom.limit() > HEADER_LENGTH, "File is too small!");
+		this.rom = rom.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer src = this.rom.duplicate();
+		src.get(header);
+
+		this.title = string(header, 0xA0, 0xab);
+		this.code = string(header, 0xAC, 0xAF);
+		this.dev = string(header, 0xB0, 0xB1);
+		this.hardware = header[0xB3];
+		this.type = header[0xB4];
+		this.ver = header[0xBC];
+		this.checksum = header[0xBD];
+		this.debug = header[0x9C] == (byte)0xA3; /*(header[0x9C] & 2) == 2 && (header[0x9C] & 128) == 128*/
+
+		if (validate)
+			validate(header);
+	}
+
+	/**
+	 * Checks the Nintendo logo and the header checksum of the first HEADER_LENGTH + 1 bytes of a ROM.
+	 */
+	static void validate(byte[] header) throws LoadException {
+		assertion(nintendo(header), "Nintendo Logo Invalid!");
+		assertion(checksum(header), "Checksum failed!");
 	}
 	
+	/**
+	 * Gives up a ROM from {@link #parse(File)}, does nothing for ROMs that aren't shared.
+	 */
+	public void release() {
+		ROMRegistry.release(this);
+	}
+
 	public void printInfo() {
 		System.out.println("TITLE: " + title + "\nGAMECODE: " + code + "\nDEV: " + dev);
 		System.out.println("HARDWARE: " + hardware + "\nTYPE: " + type + "\nVER: " + ver);
 		System.out.println("CHECKSUM: " + checksum + "\nDEBUG: " + debug);
 	}
 	
-	private boolean nintendo() {
+	private static boolean nintendo(byte[] header) {
 		boolean valid = true;
 		for (int i = 0x4; i <= 0x9B; ++i)
-			valid &= rom[i] == NINTENDO[i-4];
-		valid &= (rom[0x9C] & 0b01111101) == 0x21; //Debugging Enabled (see above)
-		valid &= rom[0x9D] == NINTENDO[0x99];
-		valid &= (rom[0x9E] & 0b11111100) == 0xF8; //Cartridge Key (TODO)
-		valid &= rom[0x9F] == NINTENDO[0x9B];
+			valid &= header[i] == NINTENDO[i-4];
+		valid &= (header[0x9C] & 0b01111101) == 0x21; //Debugging Enabled (see above)
+		valid &= header[0x9D] == NINTENDO[0x99];
+		valid &= (header[0x9E] & 0b11111100) == 0xF8; //Cartridge Key (TODO)
+		valid &= header[0x9F] == NINTENDO[0x9B];
 		return valid;
 	}
 	
-	private boolean checksum() {
+	private static boolean checksum(byte[] header) {
 		byte sum = 0;
 		for (int i = 0xA0; i <= 0xBC; ++i)
-			sum -= rom[i];
+			sum -= header[i];
 		sum = (byte) ((sum - 0x19) & 0xff);
-		return sum == checksum;
+		return sum == header[0xBD];
 	}
 }
@@ -0,0 +1,229 @@
+package rom;
+
+import static utils.ByteUtils.string;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import utils.LoadException;
+
+/**
+ * Builds an index of the ROMs in a directory tree. Only the header of each file is read (with
+ * one positional read), and the headers are read and validated in parallel on a ForkJoinPool.
+ * <p>
+ * The index file is DataOutput encoded: MAGIC, VERSION, the number of entries and then for each
+ * entry its path (relative to the directory), size, flags and the raw info part of its header.
+ *
+ * @author David Goldman
+ */
+public class ROMCatalog {
+
+	private static final int MAGIC = 0x47424149; //"GBAI"
+	private static final short VERSION = 1;
+
+	/*
+	 * The info part of the header, title to header checksum
+	 */
+	private static final int INFO_START = 0xA0;
+	private static final int INFO_LENGTH = 0xBE - INFO_START;
+
+	private static final byte FLAG_VALID = 0x1;
+
+	private static final int FILES_PER_TASK = 16;
+
+	/**
+	 * The header of one ROM in the catalog.
+	 */
+	public static class Entry {
+		public final String path;
+		public final int size;
+		public final boolean valid; //Nintendo logo and checksum
+		public final String title, code, dev;
+		public final byte hardware, type, ver, checksum;
+
+		private final byte[] info;
+
+		private Entry(String path, int size, boolean valid, byte[] info) {
+			this.path = path;
+			this.size = size;
+			this.valid = valid;
+			this.info = info;
+			this.title = string(info, 0xA0 - INFO_START, 0xAB - INFO_START);
+			this.code = string(info, 0xAC - INFO_START, 0xAF - INFO_START);
+			this.dev = string(info, 0xB0 - INFO_START, 0xB1 - INFO_START);
+			this.hardware = info[0xB3 - INFO_START];
+			this.type = info[0xB4 - INFO_START];
+			this.ver = info[0xBC - INFO_START];
+			this.checksum = info[0xBD - INFO_START];
+		}
+	}
+
+	private final ForkJoinPool pool;
+
+	public ROMCatalog(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public ROMCatalog() {
+		this(new ForkJoinPool());
+	}
+
+	/**
+	 * @return An entry for every file under directory that is sized like a ROM, sorted by path
+	 */
+	public List<Entry> scan(final Path directory) throws IOException {
+		final List<Path> files = new ArrayList<>();
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && attrs.size() > CartridgeROM.HEADER_LENGTH && attrs.size() <= CartridgeROM.MAX_LENGTH)
+					files.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE; //Unreadable files aren't cataloged
+			}
+		});
+
+		Entry[] entries = new Entry[files.size()];
+		pool.invoke(new ScanTask(directory, files, entries, 0, entries.length));
+
+		List<Entry> catalog = new ArrayList<>(entries.length);
+		for (Entry entry : entries)
+			if (entry != null)
+				catalog.add(entry);
+		Collections.sort(catalog, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.path.compareTo(b.path);
+			}
+		});
+		return catalog;
+	}
+
+	/**
+	 * Reads and validates the headers of files[from, to), splitting the range between workers.
+	 */
+	private static class ScanTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+		private final List<Path> files;
+		private final Entry[] entries;
+		private final int from, to;
+
+		private ScanTask(Path directory, List<Path> files, Entry[] entries, int from, int to) {
+			this.directory = directory;
+			this.files = files;
+			this.entries = entries;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > FILES_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ScanTask(directory, files, entries, from, middle), new ScanTask(directory, files, entries, middle, to));
+				return;
+			}
+			byte[] header = new byte[CartridgeROM.HEADER_LENGTH + 1];
+			for (int i = from; i < to; ++i)
+				entries[i] = readEntry(directory, files.get(i), header);
+		}
+	}
+
+	/**
+	 * @return The entry for file, null if it can't be read
+	 */
+	private static Entry readEntry(Path directory, Path file, byte[] header) {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.wrap(header);
+			while (buffer.hasRemaining())
+				if (channel.read(buffer, buffer.position()) == -1)
+					return null;
+			boolean valid = true;
+			try {
+				CartridgeROM.validate(header);
+			} catch (LoadException e) {
+				valid = false;
+			}
+			String path = directory.relativize(file).toString().replace('\\', '/');
+			return new Entry(path, (int) channel.size(), valid, Arrays.copyOfRange(header, INFO_START, INFO_START + INFO_LENGTH));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public static void write(Path index, List<Entry> entries) throws IOException {
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(index)))) {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				out.writeUTF(entry.path);
+				out.writeInt(entry.size);
+				out.writeByte((entry.valid) ? FLAG_VALID : 0);
+				out.write(entry.info);
+			}
+		}
+	}
+
+	public static List<Entry> read(Path index) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+			if (in.readInt() != MAGIC || in.readShort() != VERSION)
+				throw new IOException("Not a ROM index: " + index);
+			int count = in.readInt();
+			List<Entry> entries = new ArrayList<>(count);
+			for (int i = 0; i < count; ++i) {
+				String path = in.readUTF();
+				int size = in.readInt();
+				boolean valid = (in.readByte() & FLAG_VALID) != 0;
+				byte[] info = new byte[INFO_LENGTH];
+				in.readFully(info);
+				entries.add(new Entry(path, size, valid, info));
+			}
+			return entries;
+		}
+	}
+
+	/**
+	 * Usage: ROMCatalog &lt;directory&gt; &lt;index file&gt;
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.out.println("Usage: ROMCatalog <directory> <index file>");
+			return;
+		}
+		List<Entry> entries = new ROMCatalog().scan(Paths.get(args[0]));
+		write(Paths.get(args[1]), entries);
+		int valid = 0;
+		for (Entry entry : entries)
+			if (entry.valid)
+				++valid;
+		System.out.println(entries.size() + " ROMs cataloged, " + valid + " valid");
+	}
+
+}
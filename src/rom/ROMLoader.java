@@ -0,0 +1,107 @@
+package rom;
+
+import static utils.LoadException.assertion;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+
+import utils.LoadException;
+
+/**
+ * Loads ROMs for ingestion: the file is read once, in large chunks, straight into the backing
+ * array of the ROM. The header is validated as soon as the first chunk is in, and the CRC32
+ * and SHA-1 of the whole image (to match it against a game database) are computed on the
+ * workers of a ForkJoinPool while the next chunk is being read.
+ * <p>
+ * Unlike {@link CartridgeROM#parse(File)} the ROM is on the heap and not shared.
+ *
+ * @author David Goldman
+ */
+public class ROMLoader {
+
+	private static final int CHUNK_SIZE = 0x100000; //1 MB
+
+	/**
+	 * A loaded ROM with the digests of its contents.
+	 */
+	public static class Result {
+		public final CartridgeROM rom;
+		public final long crc32;
+		public final byte[] sha1;
+
+		private Result(CartridgeROM rom, long crc32, byte[] sha1) {
+			this.rom = rom;
+			this.crc32 = crc32;
+			this.sha1 = sha1;
+		}
+	}
+
+	private final ForkJoinPool pool;
+
+	public ROMLoader(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public ROMLoader() {
+		this(new ForkJoinPool());
+	}
+
+	public Result load(File file) throws LoadException {
+		assertion(file.exists(), "File does not exist!");
+		assertion(file.canRead(), "Unable to read file!");
+
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			assertion(size > CartridgeROM.HEADER_LENGTH, "File is too small!");
+			assertion(size <= CartridgeROM.MAX_LENGTH, "File is too big!");
+
+			final byte[] data = new byte[(int) size];
+			final CRC32 crc = new CRC32();
+			final MessageDigest sha = MessageDigest.getInstance("SHA-1");
+			ForkJoinTask<?> crcTask = null, shaTask = null;
+			for (int position = 0; position < data.length; ) {
+				final int offset = position;
+				final int length = Math.min(CHUNK_SIZE, data.length - offset);
+				ByteBuffer chunk = ByteBuffer.wrap(data, offset, length); //Positions in data are file positions
+				while (chunk.hasRemaining())
+					if (channel.read(chunk, chunk.position()) == -1)
+						throw new LoadException("File was truncated while loading!");
+				if (offset == 0)
+					CartridgeROM.validate(data);
+				position += length;
+
+				//Each digest consumes the chunks in order, so wait for its previous chunk first
+				if (crcTask != null) {
+					crcTask.join();
+					shaTask.join();
+				}
+				crcTask = pool.submit(new Runnable() {
+					public void run() {
+						crc.update(data, offset, length);
+					}
+				});
+				shaTask = pool.submit(new Runnable() {
+					public void run() {
+						sha.update(data, offset, length);
+					}
+				});
+			}
+			crcTask.join();
+			shaTask.join();
+			return new Result(new CartridgeROM(ByteBuffer.wrap(data), false), crc.getValue(), sha.digest());
+		} catch (IOException e) {
+			throw new LoadException(e.getClass().getSimpleName() + ": " + e.getMessage());
+		} catch (NoSuchAlgorithmException e) { //Every JVM has to support SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
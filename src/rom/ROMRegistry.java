@@ -0,0 +1,111 @@
+package rom;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import utils.LoadException;
+
+/**
+ * Process wide registry of loaded ROMs, so that every emulator instance running the same
+ * cartridge shares one (validated) CartridgeROM. Images are keyed by the SHA-1 of their
+ * contents and reference counted, an image is dropped once every user has released it.
+ * <p>
+ * Files are also remembered by path, size and modification time, so loading a file that is
+ * already registered doesn't even hash it again.
+ *
+ * @author David Goldman
+ */
+public class ROMRegistry {
+
+	private static final Map<ByteBuffer, CartridgeROM> images = new HashMap<>();
+	private static final Map<String, CartridgeROM> files = new HashMap<>();
+
+	private ROMRegistry() {
+	}
+
+	/**
+	 * @return The shared image of file, the caller has to {@link CartridgeROM#release()} it
+	 */
+	public static CartridgeROM acquire(File file) throws LoadException {
+		String identity;
+		try {
+			identity = file.getCanonicalPath() + ':' + file.length() + ':' + file.lastModified();
+		} catch (IOException e) {
+			throw new LoadException(e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+		synchronized (ROMRegistry.class) {
+			CartridgeROM rom = files.get(identity);
+			if (rom != null) {
+				++rom.references;
+				return rom;
+			}
+		}
+
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			//The mapping stays valid after the channel is closed
+			CartridgeROM rom = acquire(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			synchronized (ROMRegistry.class) {
+				files.put(identity, rom);
+			}
+			return rom;
+		} catch (IOException e) {
+			throw new LoadException(e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return The shared image with the contents of data, only validated if it is new. The
+	 * caller has to {@link CartridgeROM#release()} it.
+	 */
+	public static CartridgeROM acquire(ByteBuffer data) throws LoadException {
+		ByteBuffer hash = hash(data); //Hashed outside of the lock, it reads the whole ROM
+		synchronized (ROMRegistry.class) {
+			CartridgeROM rom = images.get(hash);
+			if (rom == null) {
+				rom = new CartridgeROM(data);
+				rom.hash = hash;
+				images.put(hash, rom);
+			}
+			++rom.references;
+			return rom;
+		}
+	}
+
+	/**
+	 * Drops one reference to rom, and the image once nobody uses it.
+	 */
+	static synchronized void release(CartridgeROM rom) {
+		if (rom.hash == null || rom.references == 0 || --rom.references != 0)
+			return;
+		images.remove(rom.hash);
+		for (Iterator<CartridgeROM> i = files.values().iterator(); i.hasNext(); )
+			if (i.next() == rom)
+				i.remove();
+	}
+
+	/**
+	 * @return The number of images currently shared
+	 */
+	public static synchronized int size() {
+		return images.size();
+	}
+
+	private static ByteBuffer hash(ByteBuffer data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(data.duplicate());
+			return ByteBuffer.wrap(digest.digest());
+		} catch (NoSuchAlgorithmException e) { //Every JVM has to support SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+}